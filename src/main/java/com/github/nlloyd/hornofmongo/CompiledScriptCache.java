@@ -0,0 +1,353 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * JVM-wide LRU cache of the {@link Script} instances compiled for the scripts
+ * given to {@link com.github.nlloyd.hornofmongo.action.MongoScriptAction}.
+ * Entries are keyed by script name, optimization level and a SHA-1 hash of
+ * the script text so the same script run against any {@link MongoScope} is
+ * only compiled once (twice when promoted from interpreted mode, see
+ * {@link MongoContextFactory}).
+ * 
+ * In compiled mode every {@link Script} is a generated class with its own
+ * class loader, the cache is therefore bounded both by number of entries and
+ * by an estimate of the size of the generated classes (derived from the
+ * length of the script text) so that evicted classes can be unloaded.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class CompiledScriptCache {
+
+    /**
+     * Rough ratio between the size of a class generated by Rhino and the
+     * length of the script text it was compiled from, measured against the
+     * mongodb JS API.
+     */
+    public static final int ESTIMATED_BYTES_PER_CHAR = 3;
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final long DEFAULT_MAX_ESTIMATED_BYTES = 32L * 1024 * 1024;
+
+    private static final LinkedHashMap<String, Entry> scripts = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    private static int maxEntries = DEFAULT_MAX_ENTRIES;
+    private static long maxEstimatedBytes = DEFAULT_MAX_ESTIMATED_BYTES;
+    private static long estimatedBytes = 0;
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong evictionCount = new AtomicLong();
+    private static final AtomicLong compileTimeNanos = new AtomicLong();
+
+    private CompiledScriptCache() {
+    }
+
+    private static final class Entry {
+        private final String scriptName;
+        private final long estimatedSize;
+        // guarded by the lock on scripts
+        private Script script;
+        private boolean interpreted;
+        private int runCount = 1;
+
+        private Entry(String scriptName, Script script, boolean interpreted,
+                long estimatedSize) {
+            this.scriptName = scriptName;
+            this.script = script;
+            this.interpreted = interpreted;
+            this.estimatedSize = estimatedSize;
+        }
+    }
+
+    /**
+     * Returns the cached {@link Script} for the given script text, compiling
+     * it with the given {@link Context} if it is not cached yet.
+     * 
+     * If the {@link Context} was made by a {@link MongoContextFactory} and is
+     * not in interpreted mode, the script is interpreted for its first
+     * {@link MongoContextFactory#getPromotionThreshold()} runs and compiled
+     * at {@link MongoContextFactory#getPromotedOptimizationLevel()} from then
+     * on. Scripts that are not cached (see {@link #setMaxEntries(int)}) are
+     * never promoted.
+     * 
+     * @param context
+     * @param source
+     * @param scriptName
+     * @return
+     */
+    public static Script getScript(Context context, String source,
+            String scriptName) {
+        MongoContextFactory factory = null;
+        if (context.getFactory() instanceof MongoContextFactory)
+            factory = (MongoContextFactory) context.getFactory();
+        int optimizationLevel = context.getOptimizationLevel();
+        int promotionThreshold = 0;
+        if ((factory != null) && (optimizationLevel >= 0)) {
+            optimizationLevel = factory.getPromotedOptimizationLevel();
+            promotionThreshold = factory.getPromotionThreshold();
+        }
+
+        String key = cacheKey(optimizationLevel, source, scriptName);
+        Entry entry;
+        synchronized (scripts) {
+            entry = scripts.get(key);
+            if (entry != null) {
+                hitCount.incrementAndGet();
+                entry.runCount++;
+                if (!entry.interpreted || (optimizationLevel < 0)
+                        || (entry.runCount <= promotionThreshold)) {
+                    scriptRun(factory, entry.interpreted);
+                    return entry.script;
+                }
+            }
+        }
+
+        // compile outside of the lock, a concurrent miss or promotion on the
+        // same key only costs a redundant compilation
+        if (entry != null) {
+            Script compiled = compile(context, source, scriptName,
+                    optimizationLevel);
+            synchronized (scripts) {
+                if (entry.interpreted) {
+                    entry.script = compiled;
+                    entry.interpreted = false;
+                    if (factory != null)
+                        factory.scriptPromoted();
+                }
+            }
+            scriptRun(factory, false);
+            return compiled;
+        }
+
+        missCount.incrementAndGet();
+        boolean interpreted = (optimizationLevel < 0)
+                || (promotionThreshold > 0);
+        Script script = compile(context, source, scriptName,
+                interpreted ? -1 : optimizationLevel);
+        long estimatedSize = estimateSize(source);
+        synchronized (scripts) {
+            Entry existing = scripts.get(key);
+            if (existing != null) {
+                scriptRun(factory, existing.interpreted);
+                return existing.script;
+            }
+            if ((maxEntries > 0) && (estimatedSize <= maxEstimatedBytes)) {
+                scripts.put(key, new Entry(scriptName, script, interpreted,
+                        estimatedSize));
+                estimatedBytes += estimatedSize;
+                trim();
+            }
+        }
+        scriptRun(factory, interpreted);
+        return script;
+    }
+
+    private static Script compile(Context context, String source,
+            String scriptName, int optimizationLevel) {
+        int contextOptimizationLevel = context.getOptimizationLevel();
+        long start = System.nanoTime();
+        context.setOptimizationLevel(optimizationLevel);
+        try {
+            return context.compileString(source, scriptName, 0, null);
+        } finally {
+            context.setOptimizationLevel(contextOptimizationLevel);
+            compileTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static void scriptRun(MongoContextFactory factory,
+            boolean interpreted) {
+        if (factory != null)
+            factory.scriptRun(interpreted);
+    }
+
+    /**
+     * @param source
+     * @return estimated size in bytes of the class generated for the given
+     *         script text
+     */
+    public static long estimateSize(String source) {
+        return (long) source.length() * ESTIMATED_BYTES_PER_CHAR;
+    }
+
+    private static String cacheKey(int optimizationLevel, String source,
+            String scriptName) {
+        return scriptName + "@" + optimizationLevel + ":"
+                + DigestUtils.sha1Hex(source);
+    }
+
+    /**
+     * Evicts least recently used entries until both bounds are honored, must
+     * be called while holding the lock on {@link #scripts}.
+     */
+    private static void trim() {
+        Iterator<Map.Entry<String, Entry>> iter = scripts.entrySet()
+                .iterator();
+        while (iter.hasNext()
+                && ((scripts.size() > maxEntries) || (estimatedBytes > maxEstimatedBytes))) {
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            estimatedBytes -= entry.estimatedSize;
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evicts every cached script compiled under the given name.
+     * 
+     * @param scriptName
+     * @return number of entries evicted
+     */
+    public static int evict(String scriptName) {
+        int evicted = 0;
+        synchronized (scripts) {
+            Iterator<Entry> iter = scripts.values().iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (entry.scriptName.equals(scriptName)) {
+                    iter.remove();
+                    estimatedBytes -= entry.estimatedSize;
+                    evicted++;
+                }
+            }
+        }
+        evictionCount.addAndGet(evicted);
+        return evicted;
+    }
+
+    /**
+     * Evicts all cached scripts, counters other than the eviction count are
+     * left untouched.
+     */
+    public static void clear() {
+        synchronized (scripts) {
+            evictionCount.addAndGet(scripts.size());
+            scripts.clear();
+            estimatedBytes = 0;
+        }
+    }
+
+    /**
+     * @return maximum number of cached scripts
+     */
+    public static int getMaxEntries() {
+        synchronized (scripts) {
+            return maxEntries;
+        }
+    }
+
+    /**
+     * @param maxEntries
+     *            maximum number of cached scripts, 0 disables caching
+     */
+    public static void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0)
+            throw new IllegalArgumentException("maxEntries must be >= 0");
+        synchronized (scripts) {
+            CompiledScriptCache.maxEntries = maxEntries;
+            trim();
+        }
+    }
+
+    /**
+     * @return maximum estimated size in bytes of all cached scripts
+     */
+    public static long getMaxEstimatedBytes() {
+        synchronized (scripts) {
+            return maxEstimatedBytes;
+        }
+    }
+
+    /**
+     * @param maxEstimatedBytes
+     *            maximum estimated size in bytes of all cached scripts, larger
+     *            scripts are never cached
+     */
+    public static void setMaxEstimatedBytes(long maxEstimatedBytes) {
+        if (maxEstimatedBytes < 0)
+            throw new IllegalArgumentException(
+                    "maxEstimatedBytes must be >= 0");
+        synchronized (scripts) {
+            CompiledScriptCache.maxEstimatedBytes = maxEstimatedBytes;
+            trim();
+        }
+    }
+
+    /**
+     * @return estimated size in bytes of all cached scripts
+     */
+    public static long getEstimatedBytes() {
+        synchronized (scripts) {
+            return estimatedBytes;
+        }
+    }
+
+    /**
+     * @return number of scripts currently cached
+     */
+    public static int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of requests that required compiling a script
+     */
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of entries evicted, whether by the bounds or explicitly
+     */
+    public static long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return total time in nanoseconds spent compiling scripts
+     */
+    public static long getCompileTimeNanos() {
+        return compileTimeNanos.get();
+    }
+
+}
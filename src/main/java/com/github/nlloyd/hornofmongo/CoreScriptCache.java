@@ -0,0 +1,206 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * JVM-wide cache of the compiled mongodb JS API {@link Script} instances that
+ * every {@link MongoScope} executes on initialization. Each classpath resource
+ * is compiled once (per optimization level) and the resulting {@link Script}
+ * is executed against each new {@link MongoScope}, which avoids re-parsing the
+ * files and generating new classes for every scope.
+ * 
+ * If the build compiled the resource ahead of time (see
+ * {@link CoreScriptCompiler}) the generated class is loaded instead of parsing
+ * the JavaScript source, unless the {@link Context} is in interpreted mode.
+ * 
+ * Entries are keyed by classpath resource path only, subclasses of
+ * {@link MongoScope} that override {@link MongoScope#loadFromClasspath(String)}
+ * to serve different content for the same path should call {@link #clear()}.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class CoreScriptCache {
+
+    /**
+     * Package of the classes generated by {@link CoreScriptCompiler}.
+     */
+    public static final String COMPILED_PACKAGE = "com.github.nlloyd.hornofmongo.compiled";
+
+    private static final ConcurrentMap<String, Script> scripts = new ConcurrentHashMap<String, Script>();
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong compileTimeNanos = new AtomicLong();
+    private static final AtomicLong precompiledCount = new AtomicLong();
+
+    private CoreScriptCache() {
+    }
+
+    /**
+     * Returns the cached {@link Script} for the given classpath resource,
+     * compiling it with the given {@link Context} on the first request.
+     * 
+     * @param context
+     * @param mongoScope
+     *            used to load the resource if it has not been compiled yet
+     * @param resourcePath
+     * @return
+     * @throws IOException
+     */
+    static Script getScript(Context context, MongoScope mongoScope,
+            String resourcePath) throws IOException {
+        String key = cacheKey(context, resourcePath);
+        Script script = scripts.get(key);
+        if (script != null) {
+            hitCount.incrementAndGet();
+            return script;
+        }
+        synchronized (scripts) {
+            script = scripts.get(key);
+            if (script != null) {
+                hitCount.incrementAndGet();
+                return script;
+            }
+            missCount.incrementAndGet();
+            long start = System.nanoTime();
+            if (context.getOptimizationLevel() >= 0)
+                script = loadPrecompiled(resourcePath);
+            if (script != null) {
+                precompiledCount.incrementAndGet();
+            } else {
+                Reader reader = mongoScope.loadFromClasspath(resourcePath);
+                try {
+                    script = context.compileReader(reader, resourcePath, 0,
+                            null);
+                } finally {
+                    reader.close();
+                }
+            }
+            compileTimeNanos.addAndGet(System.nanoTime() - start);
+            scripts.put(key, script);
+        }
+        return script;
+    }
+
+    /**
+     * @param resourcePath
+     * @return the ahead of time compiled {@link Script} or null if the class
+     *         is not on the classpath
+     */
+    private static Script loadPrecompiled(String resourcePath) {
+        try {
+            Class<?> scriptClass = Class.forName(
+                    compiledClassName(resourcePath), true,
+                    CoreScriptCache.class.getClassLoader());
+            return (Script) scriptClass.getConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Maps a classpath resource (ex. mongodb/utils_sh.js) to the name of the
+     * class generated for it (ex.
+     * com.github.nlloyd.hornofmongo.compiled.mongodb_utils_sh).
+     * 
+     * @param resourcePath
+     * @return
+     */
+    public static String compiledClassName(String resourcePath) {
+        String baseName = resourcePath;
+        if (baseName.endsWith(".js"))
+            baseName = baseName.substring(0, baseName.length() - 3);
+        StringBuilder className = new StringBuilder(COMPILED_PACKAGE)
+                .append('.');
+        for (int i = 0; i < baseName.length(); i++) {
+            char c = baseName.charAt(i);
+            className.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return className.toString();
+    }
+
+    private static String cacheKey(Context context, String resourcePath) {
+        return resourcePath + "@" + context.getOptimizationLevel();
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of requests that required compiling a script
+     */
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of misses served by ahead of time compiled classes
+     */
+    public static long getPrecompiledCount() {
+        return precompiledCount.get();
+    }
+
+    /**
+     * @return total time in nanoseconds spent loading and compiling scripts
+     */
+    public static long getCompileTimeNanos() {
+        return compileTimeNanos.get();
+    }
+
+    /**
+     * @return number of compiled scripts currently cached
+     */
+    public static int size() {
+        return scripts.size();
+    }
+
+    /**
+     * Discards all cached scripts, counters are left untouched.
+     */
+    public static void clear() {
+        scripts.clear();
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+
+/**
+ * Build-time tool that compiles the bundled mongodb JS API into Java classes
+ * using Rhino's {@link ClassCompiler}. The generated classes are named by
+ * {@link CoreScriptCache#compiledClassName(String)} and are picked up by
+ * {@link CoreScriptCache} at runtime instead of parsing the JavaScript
+ * sources.
+ * 
+ * Usage: CoreScriptCompiler &lt;javascript source dir&gt; &lt;class output
+ * dir&gt;
+ * 
+ * @author nlloyd
+ * 
+ */
+public class CoreScriptCompiler {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2)
+            throw new IllegalArgumentException(
+                    "usage: CoreScriptCompiler <javascript source dir> <class output dir>");
+        final File sourceDir = new File(args[0]);
+        final File outputDir = new File(args[1]);
+        MongoRuntime.call(new MongoAction(null) {
+            @Override
+            protected Object doRun(Context cx) {
+                try {
+                    compileAll(cx, sourceDir, sourceDir, outputDir);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void compileAll(Context cx, File sourceRoot, File dir,
+            File outputDir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("not a directory: " + dir);
+        for (File file : files) {
+            if (file.isDirectory())
+                compileAll(cx, sourceRoot, file, outputDir);
+            else if (file.getName().endsWith(".js"))
+                compile(cx, resourcePath(sourceRoot, file), file, outputDir);
+        }
+    }
+
+    private static void compile(Context cx, String resourcePath, File file,
+            File outputDir) throws IOException {
+        CompilerEnvirons compilerEnv = new CompilerEnvirons();
+        compilerEnv.initFromContext(cx);
+        ClassCompiler compiler = new ClassCompiler(compilerEnv);
+        Object[] classFiles = compiler.compileToClassFiles(
+                FileUtils.readFileToString(file), resourcePath, 0,
+                CoreScriptCache.compiledClassName(resourcePath));
+        for (int i = 0; i < classFiles.length; i += 2) {
+            String className = (String) classFiles[i];
+            byte[] classBytes = (byte[]) classFiles[i + 1];
+            File classFile = new File(outputDir, className.replace('.',
+                    File.separatorChar) + ".class");
+            FileUtils.writeByteArrayToFile(classFile, classBytes);
+        }
+    }
+
+    private static String resourcePath(File sourceRoot, File file) {
+        String rootPath = sourceRoot.getAbsolutePath();
+        String filePath = file.getAbsolutePath();
+        return filePath.substring(rootPath.length() + 1).replace(
+                File.separatorChar, '/');
+    }
+
+}
@@ -21,16 +21,35 @@
  */
 package com.github.nlloyd.hornofmongo;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 
 /**
+ * {@link ContextFactory} for the Horn of Mongo runtime. It sets the language
+ * version and Rhino features the mongodb shell scripts expect, and holds the
+ * tiered execution settings applied by {@link CompiledScriptCache}: a script
+ * runs in interpreted mode for its first {@link #getPromotionThreshold()} runs
+ * and is compiled at {@link #getPromotedOptimizationLevel()} afterwards.
+ * Contexts in interpreted mode (optimization level -1) never promote scripts.
+ * 
  * @author nlloyd
  * 
  */
 public class MongoContextFactory extends ContextFactory {
+    public static final int DEFAULT_PROMOTION_THRESHOLD = 2;
+    public static final int DEFAULT_PROMOTED_OPTIMIZATION_LEVEL = 0;
+
     private int languageVersion = Context.VERSION_1_8;
 
+    private volatile int promotionThreshold = DEFAULT_PROMOTION_THRESHOLD;
+    private volatile int promotedOptimizationLevel = DEFAULT_PROMOTED_OPTIMIZATION_LEVEL;
+
+    private final AtomicLong interpretedRunCount = new AtomicLong();
+    private final AtomicLong compiledRunCount = new AtomicLong();
+    private final AtomicLong promotionCount = new AtomicLong();
+
     @Override
     protected boolean hasFeature(Context cx, int featureIndex)
     {
@@ -61,5 +80,75 @@ public class MongoContextFactory extends ContextFactory {
         return new MongoContext(this);
     }
 
-    
+    /**
+     * @return number of interpreted runs of a script before it is compiled, 0
+     *         if scripts are compiled on their first run
+     */
+    public int getPromotionThreshold() {
+        return promotionThreshold;
+    }
+
+    /**
+     * @param promotionThreshold
+     *            number of interpreted runs of a script before it is
+     *            compiled, 0 compiles scripts on their first run
+     */
+    public void setPromotionThreshold(int promotionThreshold) {
+        if (promotionThreshold < 0)
+            throw new IllegalArgumentException(
+                    "promotionThreshold must be >= 0");
+        this.promotionThreshold = promotionThreshold;
+    }
+
+    /**
+     * @return optimization level scripts are compiled at once promoted
+     */
+    public int getPromotedOptimizationLevel() {
+        return promotedOptimizationLevel;
+    }
+
+    /**
+     * @param promotedOptimizationLevel
+     *            optimization level scripts are compiled at once promoted, -1
+     *            keeps every script interpreted
+     */
+    public void setPromotedOptimizationLevel(int promotedOptimizationLevel) {
+        if (!Context.isValidOptimizationLevel(promotedOptimizationLevel))
+            throw new IllegalArgumentException(
+                    "invalid optimization level: " + promotedOptimizationLevel);
+        this.promotedOptimizationLevel = promotedOptimizationLevel;
+    }
+
+    void scriptRun(boolean interpreted) {
+        if (interpreted)
+            interpretedRunCount.incrementAndGet();
+        else
+            compiledRunCount.incrementAndGet();
+    }
+
+    void scriptPromoted() {
+        promotionCount.incrementAndGet();
+    }
+
+    /**
+     * @return number of script runs executed in interpreted mode
+     */
+    public long getInterpretedRunCount() {
+        return interpretedRunCount.get();
+    }
+
+    /**
+     * @return number of script runs executed in compiled mode
+     */
+    public long getCompiledRunCount() {
+        return compiledRunCount.get();
+    }
+
+    /**
+     * @return number of scripts promoted from interpreted to compiled mode
+     */
+    public long getPromotionCount() {
+        return promotionCount.get();
+    }
+
 }
@@ -54,6 +54,36 @@ public class MongoRuntime {
         return mongoScope;
     }
 
+    /**
+     * Creates a newly initialized and sealed {@link MongoScope} meant to be
+     * shared as the prototype of lightweight child scopes created through
+     * {@link MongoRuntime#createMongoScope(MongoScope)}. The mongodb JS API is
+     * evaluated once into the shared scope.
+     * 
+     * The shared scope itself should not be used to execute scripts.
+     * 
+     * @return
+     */
+    public static final MongoScope createSharedMongoScope() {
+        MongoScope sharedScope = (MongoScope) call(new MongoScope.InitMongoScopeAction(
+                true));
+        return sharedScope;
+    }
+
+    /**
+     * Creates a lightweight child {@link MongoScope} of the given shared scope.
+     * Nothing is evaluated, the child only holds the globals that scripts
+     * executed against it define or modify.
+     * 
+     * @param sharedScope
+     *            a scope created by {@link MongoRuntime#createSharedMongoScope()}
+     * @return
+     */
+    public static final MongoScope createMongoScope(
+            final MongoScope sharedScope) {
+        return new MongoScope(sharedScope);
+    }
+
     /**
      * Creates a newly initialized {@link MongoScope} instance with a connection
      * to the specified mongodb instance/cluster. This will use
@@ -73,7 +103,33 @@ public class MongoRuntime {
         if (StringUtils.isBlank(mongoClientURI.getDatabase()))
             throw new IllegalArgumentException(
                     "mongo client uri must have a database");
-        MongoScope mongoScope = createMongoScope();
+        return connectMongoScope(createMongoScope(), mongoClientURI,
+                useMongoShellWriteConcern, mimicShellExceptionBehavior);
+    }
+
+    /**
+     * Same as
+     * {@link MongoRuntime#createMongoScope(MongoClientURI, boolean, boolean)}
+     * but creates a lightweight child scope of the given shared scope.
+     * 
+     * @return
+     */
+    public static final MongoScope createMongoScope(
+            final MongoScope sharedScope,
+            final MongoClientURI mongoClientURI,
+            boolean useMongoShellWriteConcern,
+            boolean mimicShellExceptionBehavior) throws UnknownHostException {
+        if (StringUtils.isBlank(mongoClientURI.getDatabase()))
+            throw new IllegalArgumentException(
+                    "mongo client uri must have a database");
+        return connectMongoScope(createMongoScope(sharedScope), mongoClientURI,
+                useMongoShellWriteConcern, mimicShellExceptionBehavior);
+    }
+
+    private static MongoScope connectMongoScope(final MongoScope mongoScope,
+            final MongoClientURI mongoClientURI,
+            boolean useMongoShellWriteConcern,
+            boolean mimicShellExceptionBehavior) {
         mongoScope.setUseMongoShellWriteConcern(useMongoShellWriteConcern);
         mongoScope.setStdoutMongoErrorMessages(mimicShellExceptionBehavior);
         
@@ -93,6 +149,21 @@ public class MongoRuntime {
         return mongoScope;
     }
 
+    /**
+     * Compiles the given script once for repeated execution against the given
+     * {@link MongoScope}, see {@link PreparedScript#execute(java.util.Map)}
+     * for how parameters are bound.
+     * 
+     * @param mongoScope
+     * @param scriptName
+     * @param source
+     * @return
+     */
+    public static final PreparedScript prepare(final MongoScope mongoScope,
+            final String scriptName, final String source) {
+        return new PreparedScript(mongoScope, scriptName, source);
+    }
+
     /**
      * Convenience method to call the {@link MongoAction} using the global
      * {@link ContextFactory}. If the global {@link ContextFactory} has not
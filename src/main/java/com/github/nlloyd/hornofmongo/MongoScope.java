@@ -34,6 +34,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -41,13 +42,17 @@ import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.bson.BSON;
@@ -55,6 +60,7 @@ import org.bson.io.BasicOutputBuffer;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -86,6 +92,7 @@ import com.github.nlloyd.hornofmongo.util.CurrentDirectoryHandler;
 import com.github.nlloyd.hornofmongo.util.DefaultCurrentDirectoryHandler;
 import com.github.nlloyd.hornofmongo.util.PrintHandler;
 import com.github.nlloyd.hornofmongo.util.QuitHandler;
+import com.github.nlloyd.hornofmongo.util.ShapeCache;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBEncoder;
 import com.mongodb.DBObject;
@@ -124,6 +131,18 @@ public class MongoScope extends Global {
             "mongodb/servers_misc.js", "mongodb/servers.js",
             "mongodb/shardingtest.js" };
 
+    /**
+     * mongodb JS API files that are not evaluated when a scope is initialized,
+     * mapped to the globals they define. Each of those globals is registered
+     * as a placeholder that evaluates the file the first time it is touched.
+     */
+    private static volatile Map<String, String[]> lazyApiFiles = getDefaultLazyApiFiles();
+
+    /**
+     * Marks lazy placeholders in a {@link PristineState}.
+     */
+    private static final Object LAZY_API_GLOBAL = new Object();
+
     private CurrentDirectoryHandler currentDirHandler = new DefaultCurrentDirectoryHandler();
 
     private PrintHandler printHandler;
@@ -155,17 +174,149 @@ public class MongoScope extends Global {
      */
     private boolean useMongoShellWriteConcern = false;
 
+    /**
+     * If true then query results are decoded straight into JS objects rather
+     * than {@link com.mongodb.DBObject} instances converted afterwards (see
+     * {@link com.github.nlloyd.hornofmongo.bson.HornOfMongoJSDecoder}).
+     * 
+     * Defaults to false.
+     */
+    private boolean directBSONDecoding = false;
+
+    /**
+     * If true then inserted, updated and removed JS objects are encoded
+     * straight into BSON rather than converted to
+     * {@link com.mongodb.DBObject} instances first (see
+     * {@link com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder}).
+     * 
+     * Defaults to false.
+     */
+    private boolean directBSONEncoding = false;
+
+    /**
+     * If true then query results are JS objects backed by the BSON bytes,
+     * which decode a field the first time it is read (see
+     * {@link com.github.nlloyd.hornofmongo.bson.LazyBSONJSObject}). Takes
+     * precedence over directBSONDecoding.
+     * 
+     * Defaults to false.
+     */
+    private boolean lazyBSONDecoding = false;
+
+    /**
+     * If true then BSON arrays holding only doubles or only int32 values are
+     * decoded as Float64Array or Int32Array typed arrays rather than JS
+     * Arrays. Typed arrays store primitives, but they are not JS Arrays (no
+     * push, concat, etc.).
+     * 
+     * Defaults to false.
+     */
+    private boolean typedArrayDecoding = false;
+
+    /**
+     * Document shapes seen by this scope, see {@link ShapeCache}.
+     */
+    private final ShapeCache shapeCache = new ShapeCache();
+
     private Set<Mongo> mongoConnections = synchronizedSet(new HashSet<Mongo>());
 
+    /**
+     * Lazy placeholders defined on this scope, mapped to the file defining
+     * them, see {@link #getLazyApiFiles()}.
+     */
+    private Map<String, String> lazyApiGlobals = new HashMap<String, String>();
+
+    /**
+     * Lazy mongodb JS API files evaluated against this scope so far.
+     */
+    private Set<String> loadedLazyApiFiles = new HashSet<String>();
+
+    /**
+     * True if scripts executed against this scope must run in interpreted
+     * mode.
+     */
+    private boolean interpretedOnly = false;
+
+    /**
+     * Globals, handlers and connections captured by {@link #markPristine()}.
+     */
+    private PristineState pristineState;
+
+    /**
+     * True if this instance has been sealed to act as the shared prototype of
+     * lightweight child {@link MongoScope} instances.
+     */
+    private boolean sharedScope = false;
+
     public MongoScope() {
         super();
     }
 
+    /**
+     * Creates a lightweight child scope that uses the given shared scope as
+     * its prototype, following Rhino's shared scope pattern. None of the
+     * mongodb JS API is evaluated again; lookups fall through to the shared
+     * scope and any global written by a script lands in this child scope.
+     * 
+     * @param sharedScope
+     *            a {@link MongoScope} previously sealed by
+     *            {@link #sealAsSharedScope()}
+     */
+    public MongoScope(MongoScope sharedScope) {
+        super();
+        if (!sharedScope.isSharedScope())
+            throw new MongoScopeException(
+                    "child MongoScope requires a sealed shared MongoScope");
+        setPrototype(sharedScope);
+        setParentScope(null);
+    }
+
     public MongoScope(Context context) throws IllegalAccessException,
             InstantiationException, InvocationTargetException {
+        this(context, true);
+    }
+
+    /**
+     * @param context
+     * @param execCoreFiles
+     *            if false only the Java side of the mongodb JS API and the
+     *            lazy placeholders are defined, leaving the scope to be filled
+     *            in by the caller (ex. from a {@link MongoScopeSnapshot})
+     */
+    protected MongoScope(Context context, boolean execCoreFiles)
+            throws IllegalAccessException, InstantiationException,
+            InvocationTargetException {
         super(context);
         initMongoJS(context);
-        execCoreFiles(context);
+        if (execCoreFiles)
+            execCoreFiles(context);
+        else
+            defineLazyApiGlobals();
+    }
+
+    /**
+     * @return true if scripts executed against this scope run in interpreted
+     *         mode
+     */
+    public boolean isInterpretedOnly() {
+        return interpretedOnly;
+    }
+
+    /**
+     * Makes every {@link MongoAction} executed against this scope run in
+     * interpreted mode, so the functions scripts define are plain serializable
+     * objects rather than instances of generated classes. Required to take a
+     * {@link MongoScopeSnapshot} of the scope, best set at creation through
+     * {@link InitMongoScopeAction#InitMongoScopeAction(boolean, boolean)}.
+     * 
+     * @param interpretedOnly
+     */
+    public void setInterpretedOnly(boolean interpretedOnly) {
+        this.interpretedOnly = interpretedOnly;
+    }
+
+    Set<String> getLoadedLazyApiFiles() {
+        return loadedLazyApiFiles;
     }
 
     /**
@@ -198,6 +349,73 @@ public class MongoScope extends Global {
         this.useMongoShellWriteConcern = useMongoShellWriteConcern;
     }
 
+    /**
+     * @return the directBSONDecoding
+     */
+    public boolean isDirectBSONDecoding() {
+        return directBSONDecoding;
+    }
+
+    /**
+     * @param directBSONDecoding
+     *            the directBSONDecoding to set
+     */
+    public void setDirectBSONDecoding(boolean directBSONDecoding) {
+        this.directBSONDecoding = directBSONDecoding;
+    }
+
+    /**
+     * @return the directBSONEncoding
+     */
+    public boolean isDirectBSONEncoding() {
+        return directBSONEncoding;
+    }
+
+    /**
+     * @param directBSONEncoding
+     *            the directBSONEncoding to set
+     */
+    public void setDirectBSONEncoding(boolean directBSONEncoding) {
+        this.directBSONEncoding = directBSONEncoding;
+    }
+
+    /**
+     * @return the lazyBSONDecoding
+     */
+    public boolean isLazyBSONDecoding() {
+        return lazyBSONDecoding;
+    }
+
+    /**
+     * @param lazyBSONDecoding
+     *            the lazyBSONDecoding to set
+     */
+    public void setLazyBSONDecoding(boolean lazyBSONDecoding) {
+        this.lazyBSONDecoding = lazyBSONDecoding;
+    }
+
+    /**
+     * @return the typedArrayDecoding
+     */
+    public boolean isTypedArrayDecoding() {
+        return typedArrayDecoding;
+    }
+
+    /**
+     * @param typedArrayDecoding
+     *            the typedArrayDecoding to set
+     */
+    public void setTypedArrayDecoding(boolean typedArrayDecoding) {
+        this.typedArrayDecoding = typedArrayDecoding;
+    }
+
+    /**
+     * @return the shapeCache
+     */
+    public ShapeCache getShapeCache() {
+        return shapeCache;
+    }
+
     /**
      * @return the currentDirHandler
      */
@@ -289,6 +507,33 @@ public class MongoScope extends Global {
         getCurrentDirHandler().setCurrentDirectory(cwd);
     }
 
+    /**
+     * @return true if this scope is a sealed shared scope
+     */
+    public boolean isSharedScope() {
+        return sharedScope;
+    }
+
+    /**
+     * @return true if this scope is a child of a shared scope
+     */
+    public boolean isChildScope() {
+        return (getPrototype() instanceof MongoScope)
+                && ((MongoScope) getPrototype()).isSharedScope();
+    }
+
+    /**
+     * Seals this fully initialized scope so that it can be shared as the
+     * prototype of any number of child scopes, see
+     * {@link #MongoScope(MongoScope)}. Only the scope object itself is sealed,
+     * objects defined by the mongodb JS API (ex. DBCollection.prototype) are
+     * still shared and mutable by every child.
+     */
+    public void sealAsSharedScope() {
+        sharedScope = true;
+        sealObject();
+    }
+
     public void addMongoConnection(Mongo mongoConnection) {
         mongoConnections.add(mongoConnection);
     }
@@ -308,6 +553,144 @@ public class MongoScope extends Global {
         mongoConnections.clear();
     }
 
+    /**
+     * Captures the current globals, handlers, flags and {@link Mongo}
+     * connections of this scope as its pristine state, see
+     * {@link #resetToPristine(boolean)}.
+     */
+    public void markPristine() {
+        // reading the globals may initialize lazily loaded constructors, which
+        // requires a Context
+        MongoRuntime.call(new MongoAction(this) {
+            @Override
+            protected Object doRun(Context cx) {
+                capturePristineState();
+                return null;
+            }
+        });
+    }
+
+    private void capturePristineState() {
+        PristineState state = new PristineState();
+        for (Object id : getAllIds()) {
+            if ((id instanceof String) && isLazyApiPlaceholder((String) id))
+                state.globals.put(id, LAZY_API_GLOBAL);
+            else
+                state.globals.put(id, getOwnGlobal(id));
+        }
+        state.loadedLazyApiFiles.addAll(loadedLazyApiFiles);
+        synchronized (mongoConnections) {
+            state.connections.addAll(mongoConnections);
+        }
+        state.currentDirHandler = currentDirHandler;
+        state.printHandler = printHandler;
+        state.clearHandler = clearHandler;
+        state.quitHandler = quitHandler;
+        state.stdoutMongoErrorMessages = stdoutMongoErrorMessages;
+        state.useMongoShellWriteConcern = useMongoShellWriteConcern;
+        state.directBSONDecoding = directBSONDecoding;
+        state.directBSONEncoding = directBSONEncoding;
+        state.lazyBSONDecoding = lazyBSONDecoding;
+        state.typedArrayDecoding = typedArrayDecoding;
+        pristineState = state;
+    }
+
+    /**
+     * @return true if {@link #markPristine()} has been called on this scope
+     */
+    public boolean hasPristineState() {
+        return pristineState != null;
+    }
+
+    /**
+     * Restores the state captured by {@link #markPristine()} without
+     * rebuilding the scope: globals defined since are deleted, globals
+     * overwritten since get their previous value back and handlers and flags
+     * are restored. Changes made to objects reachable from the globals (ex.
+     * DBCollection.prototype) are not undone.
+     * 
+     * @param closeNewConnections
+     *            if true {@link Mongo} connections added since
+     *            {@link #markPristine()} are closed, otherwise they are kept
+     *            until {@link #cleanup()}
+     */
+    public void resetToPristine(final boolean closeNewConnections) {
+        if (pristineState == null)
+            throw new MongoScopeException(
+                    "resetToPristine() called before markPristine()");
+        MongoRuntime.call(new MongoAction(this) {
+            @Override
+            protected Object doRun(Context cx) {
+                restorePristineState(closeNewConnections);
+                return null;
+            }
+        });
+    }
+
+    private void restorePristineState(boolean closeNewConnections) {
+        PristineState state = pristineState;
+        for (Object id : getAllIds()) {
+            if (!state.globals.containsKey(id)) {
+                // globals declared with var are PERMANENT
+                if (id instanceof String) {
+                    setAttributes((String) id, EMPTY);
+                    delete((String) id);
+                } else {
+                    setAttributes(((Number) id).intValue(), EMPTY);
+                    delete(((Number) id).intValue());
+                }
+            }
+        }
+        for (Map.Entry<Object, Object> global : state.globals.entrySet()) {
+            Object id = global.getKey();
+            if (global.getValue() == LAZY_API_GLOBAL) {
+                if (!isLazyApiPlaceholder((String) id)) {
+                    setAttributes((String) id, EMPTY);
+                    delete((String) id);
+                    defineLazyApiGlobal(lazyApiGlobals.get(id), (String) id);
+                }
+                continue;
+            }
+            if (getOwnGlobal(id) == global.getValue())
+                continue;
+            if (id instanceof String)
+                put((String) id, this, global.getValue());
+            else
+                put(((Number) id).intValue(), this, global.getValue());
+        }
+        if (closeNewConnections) {
+            synchronized (mongoConnections) {
+                for (Iterator<Mongo> it = mongoConnections.iterator(); it
+                        .hasNext();) {
+                    Mongo connection = it.next();
+                    if (!state.connections.contains(connection)) {
+                        connection.close();
+                        it.remove();
+                    }
+                }
+            }
+        }
+        currentDirHandler = state.currentDirHandler;
+        printHandler = state.printHandler;
+        clearHandler = state.clearHandler;
+        quitHandler = state.quitHandler;
+        stdoutMongoErrorMessages = state.stdoutMongoErrorMessages;
+        useMongoShellWriteConcern = state.useMongoShellWriteConcern;
+        directBSONDecoding = state.directBSONDecoding;
+        directBSONEncoding = state.directBSONEncoding;
+        lazyBSONDecoding = state.lazyBSONDecoding;
+        typedArrayDecoding = state.typedArrayDecoding;
+        loadedLazyApiFiles = new HashSet<String>(state.loadedLazyApiFiles);
+        lastCalledDB = null;
+    }
+
+    private Object getOwnGlobal(Object id) {
+        if (id instanceof String)
+            return get((String) id, this);
+        else
+            return get(((Number) id).intValue(), this);
+    }
+
     protected void initMongoJS(Context context) throws IllegalAccessException,
             InstantiationException, InvocationTargetException {
         if (!isInitialized()) {
@@ -346,18 +729,180 @@ public class MongoScope extends Global {
 
     protected void execCoreFiles(Context context) {
         for (String jsSetupFile : mongoApiFiles) {
-            try {
-                context.evaluateReader(this, loadFromClasspath(jsSetupFile),
-                        jsSetupFile, 0, null);
-            } catch (IOException e) {
-                throw new MongoScopeException(
-                        "Caught IOException attempting to load from classpath: "
-                                + jsSetupFile, e);
-            } catch (JavaScriptException e) {
+            if (!lazyApiFiles.containsKey(jsSetupFile))
+                execCoreFile(context, jsSetupFile);
+        }
+        defineLazyApiGlobals();
+    }
+
+    private void defineLazyApiGlobals() {
+        for (Map.Entry<String, String[]> lazyFile : lazyApiFiles.entrySet()) {
+            for (String name : lazyFile.getValue())
+                defineLazyApiGlobal(lazyFile.getKey(), name);
+        }
+    }
+
+    private void execCoreFile(Context context, String jsSetupFile) {
+        try {
+            CoreScriptCache.getScript(context, this, jsSetupFile).exec(context,
+                    this);
+        } catch (IOException e) {
+            throw new MongoScopeException(
+                    "Caught IOException attempting to load from classpath: "
+                            + jsSetupFile, e);
+        } catch (JavaScriptException e) {
+            throw new MongoScopeException(
+                    "Caught JavaScriptException attempting to load from classpath: "
+                            + jsSetupFile, e);
+        }
+    }
+
+    private void defineLazyApiGlobal(String jsSetupFile, String name) {
+        try {
+            defineProperty(name, new LazyApiGlobal(jsSetupFile, name),
+                    LazyApiGlobal.class.getMethod("getValue", Scriptable.class),
+                    LazyApiGlobal.class.getMethod("setValue", Scriptable.class,
+                            Object.class), ScriptableObject.DONTENUM);
+        } catch (NoSuchMethodException e) {
+            throw new MongoScopeException(
+                    "could not define lazy mongodb JS API global: " + name, e);
+        }
+        lazyApiGlobals.put(name, jsSetupFile);
+    }
+
+    /**
+     * @param name
+     * @return true if the given global of this scope is still a placeholder
+     *         for a lazy mongodb JS API file
+     */
+    protected boolean isLazyApiPlaceholder(String name) {
+        return lazyApiGlobals.containsKey(name)
+                && isGetterOrSetter(name, 0, false);
+    }
+
+    /**
+     * Replaces a lazy placeholder of this scope, or shadows the placeholder of
+     * the shared scope, with the given value.
+     * 
+     * @param name
+     * @param value
+     */
+    protected void putLazyApiGlobal(String name, Object value) {
+        if (isLazyApiPlaceholder(name))
+            delete(name);
+        put(name, this, value);
+    }
+
+    /**
+     * Evaluates a lazy mongodb JS API file against this scope, unless it has
+     * already been evaluated against it.
+     * 
+     * @param jsSetupFile
+     * @return true if the file was evaluated by this call
+     */
+    protected boolean loadLazyApiFile(String jsSetupFile) {
+        if (!loadedLazyApiFiles.add(jsSetupFile))
+            return false;
+        for (Map.Entry<String, String> lazyGlobal : lazyApiGlobals.entrySet()) {
+            if (lazyGlobal.getValue().equals(jsSetupFile)
+                    && isLazyApiPlaceholder(lazyGlobal.getKey()))
+                delete(lazyGlobal.getKey());
+        }
+        execCoreFile(Context.getCurrentContext(), jsSetupFile);
+        return true;
+    }
+
+    /**
+     * @return the lazy mongodb JS API files used by scopes created from now
+     *         on, mapped to the globals they define
+     */
+    public static Map<String, String[]> getLazyApiFiles() {
+        return lazyApiFiles;
+    }
+
+    /**
+     * Sets the mongodb JS API files that scopes created from now on evaluate
+     * on demand instead of when they are initialized. Files part of the eagerly
+     * evaluated API are skipped, other files (ex. "mongodb/replsettest.js")
+     * are made available.
+     * 
+     * @param files
+     *            classpath resources mapped to the globals they define, null
+     *            or empty to evaluate the whole API eagerly
+     */
+    public static void setLazyApiFiles(Map<String, String[]> files) {
+        Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+        if (files != null) {
+            for (Map.Entry<String, String[]> file : files.entrySet())
+                copy.put(file.getKey(), file.getValue().clone());
+        }
+        lazyApiFiles = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the shell test harness files (servers*.js, shardingtest.js,
+     *         replsettest.js and replsetbridge.js) mapped to the globals they
+     *         define
+     */
+    public static Map<String, String[]> getDefaultLazyApiFiles() {
+        Map<String, String[]> files = new LinkedHashMap<String, String[]>();
+        files.put("mongodb/servers_misc.js", new String[] { "MongodRunner",
+                "ReplTest", "SyncCCTest", "ToolTest", "allocatePorts",
+                "skipIfTestingReplication", "startParallelShell",
+                "testingReplication" });
+        files.put("mongodb/servers.js", new String[] { "MongoRunner",
+                "_parsePath", "_parsePort", "connectionURLTheSame",
+                "createMongoArgs", "myPort", "runMongoProgram",
+                "startMongoProgram", "startMongoProgramNoConnect",
+                "startMongod", "startMongodEmpty", "startMongodNoReset",
+                "startMongodTest", "startMongos" });
+        files.put("mongodb/shardingtest.js", new String[] { "ShardingTest",
+                "printShardingSizes", "printShardingStatus" });
+        files.put("mongodb/replsettest.js", new String[] { "ReplSetTest" });
+        files.put("mongodb/replsetbridge.js",
+                new String[] { "ReplSetBridge" });
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Accessor of a lazy mongodb JS API placeholder. Reading the global
+     * evaluates the backing file against the scope it is read from, then
+     * returns the real value. Writing it replaces the placeholder in the scope
+     * written to.
+     */
+    public static final class LazyApiGlobal implements Serializable {
+
+        private static final long serialVersionUID = -3052379545716347722L;
+
+        private final String jsSetupFile;
+        private final String name;
+
+        private LazyApiGlobal(String jsSetupFile, String name) {
+            this.jsSetupFile = jsSetupFile;
+            this.name = name;
+        }
+
+        public Object getValue(Scriptable start) {
+            Scriptable topScope = resolveThisScope(Context.getCurrentContext(),
+                    ScriptableObject.getTopLevelScope(start));
+            if (!(topScope instanceof MongoScope))
+                return Undefined.instance;
+            if (((MongoScope) topScope).isSharedScope())
                 throw new MongoScopeException(
-                        "Caught JavaScriptException attempting to load from classpath: "
-                                + jsSetupFile, e);
-            }
+                        "cannot load lazy mongodb JS API file into a shared scope: "
+                                + jsSetupFile);
+            // already loaded, the file does not define this global
+            if (!((MongoScope) topScope).loadLazyApiFile(jsSetupFile))
+                return Undefined.instance;
+            Object value = ScriptableObject.getProperty(topScope, name);
+            return value == NOT_FOUND ? Undefined.instance : value;
+        }
+
+        public void setValue(Scriptable start, Object value) {
+            if (start instanceof MongoScope)
+                ((MongoScope) start).putLazyApiGlobal(name, value);
+            else
+                start.put(name, start, value);
         }
     }
 
@@ -468,6 +1013,7 @@ public class MongoScope extends Global {
 
     public static BinData UUID(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (args.length != 1)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "UUID needs 1 argument"));
@@ -475,15 +1021,13 @@ public class MongoScope extends Global {
         if (uuidHex.length() != 32)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "UUID string must have 32 characters"));
-        String str = hexToBase64(uuidHex);
-        BinData uuid = (BinData) MongoRuntime.call(new NewInstanceAction(
-                (MongoScope) thisObj, "BinData", new Object[] { BSON.B_UUID,
-                        str }));
-        return uuid;
+        return BinData.newInstance((MongoScope) thisObj, BSON.B_UUID,
+                hexToBytes(uuidHex));
     }
 
     public static BinData MD5(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (args.length != 1)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "MD5 needs 1 argument"));
@@ -491,38 +1035,35 @@ public class MongoScope extends Global {
         if (md5Hex.length() != 32)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "MD5 string must have 32 characters"));
-        String str = hexToBase64(md5Hex);
         // MD5Type = 5 in bsontypes.h
-        BinData md5 = (BinData) MongoRuntime.call(new NewInstanceAction(
-                (MongoScope) thisObj, "BinData", new Object[] { 5, str }));
-        return md5;
+        return BinData.newInstance((MongoScope) thisObj, 5,
+                hexToBytes(md5Hex));
     }
 
     public static BinData HexData(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (args.length != 2)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "HexData needs 2 arguments"));
         int type = Double.valueOf(Context.toNumber(args[0])).intValue();
-        String str = hexToBase64(Context.toString(args[1]));
-        BinData md5 = (BinData) MongoRuntime.call(new NewInstanceAction(
-                (MongoScope) thisObj, "BinData", new Object[] { type, str }));
-        return md5;
+        return BinData.newInstance((MongoScope) thisObj, type,
+                hexToBytes(Context.toString(args[1])));
     }
 
-    private static final String hexToBase64(final String hex) {
-        String base64 = null;
+    private static final byte[] hexToBytes(final String hex) {
+        byte[] bytes = null;
         try {
-            base64 = Base64
-                    .encodeBase64String(Hex.decodeHex(hex.toCharArray()));
+            bytes = Hex.decodeHex(hex.toCharArray());
         } catch (DecoderException e) {
             Context.throwAsScriptRuntimeEx(e);
         }
-        return base64;
+        return bytes;
     }
 
     public static Object print(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (thisObj instanceof MongoScope) {
             MongoScope mongoScope = (MongoScope) thisObj;
             if (mongoScope.getPrintHandler() != null)
@@ -546,6 +1087,7 @@ public class MongoScope extends Global {
      */
     public static void clear(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (thisObj instanceof MongoScope) {
             MongoScope mongoScope = (MongoScope) thisObj;
             if (mongoScope.getClearHandler() != null)
@@ -559,6 +1101,7 @@ public class MongoScope extends Global {
      */
     public static void quit(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (thisObj instanceof MongoScope) {
             MongoScope mongoScope = (MongoScope) thisObj;
             if (mongoScope.getQuitHandler() != null)
@@ -573,6 +1116,7 @@ public class MongoScope extends Global {
 
     public static Object ls(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         File path = null;
         MongoScope mongoScope = (MongoScope) thisObj;
         if (args.length == 0)
@@ -615,6 +1159,7 @@ public class MongoScope extends Global {
 
     public static Object cd(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         assertSingleArgument(args);
         MongoScope mongoScope = (MongoScope) thisObj;
         String newDirPath = Context.toString(args[0]);
@@ -633,6 +1178,7 @@ public class MongoScope extends Global {
 
     public static Object mkdir(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         assertSingleArgument(args);
         boolean success = false;
         File newDir;
@@ -647,11 +1193,13 @@ public class MongoScope extends Global {
 
     public static Object pwd(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         return ((MongoScope) thisObj).getCwd().getAbsolutePath();
     }
 
     public static Object listFiles(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         File path = null;
         if (args.length == 0)
             path = ((MongoScope) thisObj).getCwd();
@@ -707,6 +1255,7 @@ public class MongoScope extends Global {
 
     public static Object cat(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         assertSingleArgument(args);
         try {
             File toRead = resolveFilePath((MongoScope) thisObj,
@@ -720,6 +1269,7 @@ public class MongoScope extends Global {
 
     public static Object removeFile(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         assertSingleArgument(args);
         boolean success = false;
         File toRemove;
@@ -734,6 +1284,7 @@ public class MongoScope extends Global {
 
     public static Object md5sumFile(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         assertSingleArgument(args);
         MessageDigest md = null;
         try {
@@ -782,6 +1333,7 @@ public class MongoScope extends Global {
 
     public static Object fuzzFile(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         if (args.length != 2)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
                     "fuzzFile takes 2 arguments"));
@@ -837,6 +1389,7 @@ public class MongoScope extends Global {
 
     public static Object getMemInfo(Context cx, Scriptable thisObj,
             Object[] args, Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         Scriptable memInfo = (Scriptable) MongoRuntime.call(new NewInstanceAction(
                 (MongoScope)thisObj, "Object"));
 
@@ -854,6 +1407,26 @@ public class MongoScope extends Global {
 
     // *** ******************** ***
 
+    /**
+     * Global functions called from within the mongodb JS API evaluated in a
+     * shared scope receive that shared scope as thisObj. In that case resolve
+     * the child {@link MongoScope} the current top level call was made on.
+     * 
+     * @param cx
+     * @param thisObj
+     * @return
+     */
+    protected static Scriptable resolveThisScope(Context cx, Scriptable thisObj) {
+        if ((cx != null) && (thisObj instanceof MongoScope)
+                && ((MongoScope) thisObj).isSharedScope()
+                && ScriptRuntime.hasTopCall(cx)) {
+            Scriptable topCallScope = ScriptRuntime.getTopCallScope(cx);
+            if (topCallScope instanceof MongoScope)
+                return topCallScope;
+        }
+        return thisObj;
+    }
+
     public static void assertSingleArgument(final Object[] args) {
         if (args.length != 1)
             Context.throwAsScriptRuntimeEx(new MongoScriptException(
@@ -862,14 +1435,57 @@ public class MongoScope extends Global {
 
     public static final class InitMongoScopeAction extends MongoAction {
 
+        private boolean shared = false;
+
+        private boolean interpretedOnly = false;
+
+        private boolean execCoreFiles = true;
+
         public InitMongoScopeAction() {
             super(null);
         }
 
+        /**
+         * @param shared
+         *            if true the new {@link MongoScope} will be sealed as a
+         *            shared scope, see {@link MongoScope#sealAsSharedScope()}
+         */
+        public InitMongoScopeAction(boolean shared) {
+            super(null);
+            this.shared = shared;
+        }
+
+        /**
+         * @param shared
+         *            if true the new {@link MongoScope} will be sealed as a
+         *            shared scope, see {@link MongoScope#sealAsSharedScope()}
+         * @param interpretedOnly
+         *            if true the new {@link MongoScope} is initialized and
+         *            later executes scripts in interpreted mode, see
+         *            {@link MongoScope#setInterpretedOnly(boolean)}
+         */
+        public InitMongoScopeAction(boolean shared, boolean interpretedOnly) {
+            this(shared, interpretedOnly, true);
+        }
+
+        InitMongoScopeAction(boolean shared, boolean interpretedOnly,
+                boolean execCoreFiles) {
+            super(null);
+            this.shared = shared;
+            this.interpretedOnly = interpretedOnly;
+            this.execCoreFiles = execCoreFiles;
+        }
+
         @Override
         public Object doRun(Context cx) {
             try {
-                return new MongoScope(cx);
+                if (interpretedOnly)
+                    cx.setOptimizationLevel(-1);
+                MongoScope mongoScope = new MongoScope(cx, execCoreFiles);
+                mongoScope.setInterpretedOnly(interpretedOnly);
+                if (shared)
+                    mongoScope.sealAsSharedScope();
+                return mongoScope;
             } catch (IllegalAccessException e) {
                 throw new MongoScopeException(
                         "caught when attempting to create a new MongoScope", e);
@@ -884,6 +1500,22 @@ public class MongoScope extends Global {
 
     }
 
+    private static final class PristineState {
+        private final Map<Object, Object> globals = new HashMap<Object, Object>();
+        private final Set<Mongo> connections = new HashSet<Mongo>();
+        private final Set<String> loadedLazyApiFiles = new HashSet<String>();
+        private CurrentDirectoryHandler currentDirHandler;
+        private PrintHandler printHandler;
+        private ClearHandler clearHandler;
+        private QuitHandler quitHandler;
+        private boolean stdoutMongoErrorMessages;
+        private boolean useMongoShellWriteConcern;
+        private boolean directBSONDecoding;
+        private boolean directBSONEncoding;
+        private boolean lazyBSONDecoding;
+        private boolean typedArrayDecoding;
+    }
+
     private static Reader loadFile(MongoScope scope, String filePath)
             throws IOException {
         Reader reader = null;
@@ -901,6 +1533,7 @@ public class MongoScope extends Global {
      */
     public static void load(Context cx, Scriptable thisObj, Object[] args,
             Function funObj) {
+        thisObj = resolveThisScope(cx, thisObj);
         for (int i = 0; i < args.length; i++) {
             String filename = Context.toString(args[i]);
             try {
@@ -0,0 +1,435 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Bounded pool of reusable {@link MongoScope} instances.
+ * 
+ * Scopes are created on demand up to the configured maximum, borrowed through
+ * {@link #borrowScope()} and handed back through
+ * {@link #returnScope(MongoScope)}. On return a scope is reset to the pristine
+ * state captured right after its creation (see
+ * {@link MongoScope#resetToPristine(boolean)}) rather than rebuilt, so the
+ * mongodb JS API is only evaluated once per pooled scope.
+ * 
+ * Scopes are created as lightweight children of a shared scope if one is set
+ * through {@link #setSharedScope(MongoScope)}, and connected through the
+ * mongodb JS API "connect()" method if a {@link MongoClientURI} is set through
+ * {@link #setMongoClientURI(MongoClientURI)}. Configuration must happen before
+ * the first scope is borrowed.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class MongoScopePool {
+
+    /**
+     * What to do on return with {@link Mongo} connections opened by scripts
+     * while a scope was borrowed. Connections opened when the scope was
+     * created (ex. the "db" global) are always kept.
+     */
+    public static enum ConnectionPolicy {
+        /**
+         * Keep the connections open until the scope is evicted or the pool is
+         * closed.
+         */
+        KEEP,
+        /**
+         * Close the connections when the scope is returned.
+         */
+        CLOSE
+    }
+
+    private final int maxSize;
+
+    /**
+     * One permit per scope that can be borrowed at the same time.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Idle scopes, most recently returned first.
+     */
+    private final LinkedBlockingDeque<IdleScope> idleScopes = new LinkedBlockingDeque<IdleScope>();
+
+    private final Set<MongoScope> borrowedScopes = Collections
+            .synchronizedSet(Collections
+                    .newSetFromMap(new IdentityHashMap<MongoScope, Boolean>()));
+
+    private volatile boolean closed = false;
+
+    private MongoScope sharedScope;
+    private MongoClientURI mongoClientURI;
+    private boolean useMongoShellWriteConcern = false;
+    private boolean mimicShellExceptionBehavior = false;
+
+    private long borrowTimeoutMillis = 30000;
+    private long maxIdleMillis = -1;
+    private boolean validateOnReturn = true;
+    private ConnectionPolicy connectionPolicy = ConnectionPolicy.CLOSE;
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong returnCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            maximum number of scopes borrowed at the same time
+     */
+    public MongoScopePool(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows an idle scope from the pool, creating a new one if none is idle.
+     * Blocks for up to {@link #getBorrowTimeoutMillis()} if
+     * {@link #getMaxSize()} scopes are already borrowed.
+     * 
+     * @return a scope in its pristine state
+     * @throws MongoScopeException
+     *             if the pool is closed, the timeout expired or the scope could
+     *             not be created
+     */
+    public MongoScope borrowScope() {
+        if (closed)
+            throw new MongoScopeException("MongoScopePool is closed");
+        evictIdle();
+        acquirePermit();
+        try {
+            MongoScope mongoScope = null;
+            IdleScope idleScope = idleScopes.pollFirst();
+            if (idleScope != null)
+                mongoScope = idleScope.mongoScope;
+            else
+                mongoScope = createScope();
+            borrowedScopes.add(mongoScope);
+            borrowCount.incrementAndGet();
+            return mongoScope;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a borrowed scope back to the pool. The scope is reset to its
+     * pristine state and, if {@link #isValidateOnReturn()}, validated before
+     * being made available again. Scopes that fail either step are discarded.
+     * 
+     * @param mongoScope
+     *            a scope obtained from {@link #borrowScope()}
+     * @throws IllegalArgumentException
+     *             if the scope was not borrowed from this pool
+     */
+    public void returnScope(MongoScope mongoScope) {
+        if (!borrowedScopes.remove(mongoScope))
+            throw new IllegalArgumentException(
+                    "MongoScope was not borrowed from this pool");
+        try {
+            returnCount.incrementAndGet();
+            boolean reusable = !closed && resetScope(mongoScope);
+            if (reusable && validateOnReturn && !validateScope(mongoScope)) {
+                validationFailureCount.incrementAndGet();
+                reusable = false;
+            }
+            if (reusable && (idleScopes.size() < maxSize))
+                idleScopes.offerFirst(new IdleScope(mongoScope, System
+                        .currentTimeMillis()));
+            else
+                destroyScope(mongoScope);
+        } finally {
+            permits.release();
+        }
+        evictIdle();
+    }
+
+    /**
+     * Discards the idle scopes that have been idle for longer than
+     * {@link #getMaxIdleMillis()}. Called on every borrow and return, public
+     * for callers that want to trim the pool on their own schedule.
+     * 
+     * @return the number of evicted scopes
+     */
+    public int evictIdle() {
+        if (maxIdleMillis < 0)
+            return 0;
+        long expiry = System.currentTimeMillis() - maxIdleMillis;
+        int evicted = 0;
+        for (Iterator<IdleScope> it = idleScopes.descendingIterator(); it
+                .hasNext();) {
+            IdleScope idleScope = it.next();
+            if (idleScope.idleSince > expiry)
+                break;
+            if (idleScopes.removeLastOccurrence(idleScope)) {
+                destroyScope(idleScope.mongoScope);
+                evictedCount.incrementAndGet();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Discards every idle scope and refuses further borrows. Scopes still
+     * borrowed are discarded when they are returned.
+     */
+    public void close() {
+        closed = true;
+        IdleScope idleScope;
+        while ((idleScope = idleScopes.pollFirst()) != null)
+            destroyScope(idleScope.mongoScope);
+    }
+
+    /**
+     * Checks that a returned scope can still be used, by default that the
+     * mongodb JS API is reachable from it. Override for stricter checks.
+     * 
+     * @param mongoScope
+     * @return true if the scope can be handed out again
+     */
+    protected boolean validateScope(MongoScope mongoScope) {
+        return ScriptableObject.getProperty(mongoScope, "tojson") instanceof Function;
+    }
+
+    private void acquirePermit() {
+        if (permits.tryAcquire())
+            return;
+        waitCount.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new MongoScopeException("timed out after "
+                        + borrowTimeoutMillis
+                        + "ms waiting for a MongoScope from the pool");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoScopeException(
+                    "interrupted while waiting for a MongoScope from the pool",
+                    e);
+        }
+    }
+
+    private MongoScope createScope() {
+        MongoScope mongoScope;
+        if (mongoClientURI != null) {
+            try {
+                if (sharedScope != null)
+                    mongoScope = MongoRuntime.createMongoScope(sharedScope,
+                            mongoClientURI, useMongoShellWriteConcern,
+                            mimicShellExceptionBehavior);
+                else
+                    mongoScope = MongoRuntime.createMongoScope(mongoClientURI,
+                            useMongoShellWriteConcern,
+                            mimicShellExceptionBehavior);
+            } catch (UnknownHostException e) {
+                throw new MongoScopeException(
+                        "could not connect pooled MongoScope", e);
+            }
+        } else if (sharedScope != null) {
+            mongoScope = MongoRuntime.createMongoScope(sharedScope);
+        } else {
+            mongoScope = MongoRuntime.createMongoScope();
+        }
+        mongoScope.markPristine();
+        createdCount.incrementAndGet();
+        return mongoScope;
+    }
+
+    private boolean resetScope(MongoScope mongoScope) {
+        try {
+            mongoScope
+                    .resetToPristine(connectionPolicy == ConnectionPolicy.CLOSE);
+            resetCount.incrementAndGet();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void destroyScope(MongoScope mongoScope) {
+        mongoScope.cleanup();
+        destroyedCount.incrementAndGet();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public MongoScope getSharedScope() {
+        return sharedScope;
+    }
+
+    public void setSharedScope(MongoScope sharedScope) {
+        if ((sharedScope != null) && !sharedScope.isSharedScope())
+            throw new MongoScopeException(
+                    "MongoScope has not been sealed as a shared scope");
+        this.sharedScope = sharedScope;
+    }
+
+    public MongoClientURI getMongoClientURI() {
+        return mongoClientURI;
+    }
+
+    public void setMongoClientURI(MongoClientURI mongoClientURI) {
+        this.mongoClientURI = mongoClientURI;
+    }
+
+    public boolean isUseMongoShellWriteConcern() {
+        return useMongoShellWriteConcern;
+    }
+
+    public void setUseMongoShellWriteConcern(boolean useMongoShellWriteConcern) {
+        this.useMongoShellWriteConcern = useMongoShellWriteConcern;
+    }
+
+    public boolean isMimicShellExceptionBehavior() {
+        return mimicShellExceptionBehavior;
+    }
+
+    public void setMimicShellExceptionBehavior(
+            boolean mimicShellExceptionBehavior) {
+        this.mimicShellExceptionBehavior = mimicShellExceptionBehavior;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    /**
+     * @param maxIdleMillis
+     *            how long a scope may stay idle before being evicted, negative
+     *            to never evict (the default)
+     */
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public boolean isValidateOnReturn() {
+        return validateOnReturn;
+    }
+
+    public void setValidateOnReturn(boolean validateOnReturn) {
+        this.validateOnReturn = validateOnReturn;
+    }
+
+    public ConnectionPolicy getConnectionPolicy() {
+        return connectionPolicy;
+    }
+
+    public void setConnectionPolicy(ConnectionPolicy connectionPolicy) {
+        this.connectionPolicy = connectionPolicy;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getIdleCount() {
+        return idleScopes.size();
+    }
+
+    public int getBorrowedCount() {
+        return borrowedScopes.size();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getReturnCount() {
+        return returnCount.get();
+    }
+
+    public long getResetCount() {
+        return resetCount.get();
+    }
+
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.get();
+    }
+
+    private static final class IdleScope {
+        private final MongoScope mongoScope;
+        private final long idleSince;
+
+        private IdleScope(MongoScope mongoScope, long idleSince) {
+            this.mongoScope = mongoScope;
+            this.idleSince = idleSince;
+        }
+    }
+
+}
@@ -0,0 +1,522 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.IdFunctionObject;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.NativeJavaPackage;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+import org.mozilla.javascript.xml.XMLObject;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+
+/**
+ * Saves the state of an initialized {@link MongoScope} (the mongodb JS API,
+ * helper libraries loaded into it and any other global) so that another JVM
+ * can restore it instead of evaluating the same scripts again.
+ * 
+ * Only what the scripts changed on top of a baseline scope is written: the
+ * baseline is a scope with the mongodb JS API evaluated (and the same lazy API
+ * files loaded), an API function counts as unchanged as long as the same name
+ * holds a function of the same source. Unchanged objects are referenced by
+ * name through Rhino's {@link ScriptableOutputStream}, a restore builds the
+ * API from the precompiled scripts (see {@link MongoRuntime#createMongoScope()})
+ * and binds these names to it. Functions can only be serialized if they were
+ * not compiled to Java classes, so snapshots can only be taken from scopes
+ * created through {@link #createMongoScope()}.
+ * 
+ * {@link com.github.nlloyd.hornofmongo.adaptor.Mongo} instances reconnect on
+ * first use after a restore. Open cursors and handlers (print, quit, etc.)
+ * are not part of a snapshot, neither is state held in the closures of API
+ * functions.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class MongoScopeSnapshot {
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Marks getter/setter properties, which are left out of snapshots.
+     */
+    private static final Object ACCESSOR = new Object();
+
+    private static final String INTERPRETED_FUNCTION_CLASS = "org.mozilla.javascript.InterpretedFunction";
+
+    private MongoScopeSnapshot() {
+    }
+
+    /**
+     * @return a newly initialized {@link MongoScope} that executes scripts in
+     *         interpreted mode, see {@link MongoScope#setInterpretedOnly(boolean)}
+     */
+    public static MongoScope createMongoScope() {
+        return (MongoScope) MongoRuntime
+                .call(new MongoScope.InitMongoScopeAction(false, true));
+    }
+
+    /**
+     * Writes a snapshot of the given scope to a file.
+     * 
+     * @param mongoScope
+     * @param file
+     * @throws IOException
+     */
+    public static void write(MongoScope mongoScope, File file)
+            throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(mongoScope, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given scope to a stream.
+     * 
+     * @param mongoScope
+     *            a scope created through {@link #createMongoScope()}
+     * @param out
+     * @throws IOException
+     */
+    public static void write(final MongoScope mongoScope, final OutputStream out)
+            throws IOException {
+        if (!mongoScope.isInterpretedOnly())
+            throw new MongoScopeException(
+                    "only MongoScope instances that run in interpreted mode can be snapshot");
+        if (mongoScope.isSharedScope() || mongoScope.isChildScope())
+            throw new MongoScopeException(
+                    "shared and child MongoScope instances cannot be snapshot");
+        final MongoScope baseline = createBaselineScope(true);
+        Object result = MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                try {
+                    for (String jsSetupFile : mongoScope
+                            .getLoadedLazyApiFiles())
+                        baseline.loadLazyApiFile(jsSetupFile);
+                    writeSnapshot(cx, mongoScope, baseline, out);
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+        if (result instanceof IOException)
+            throw (IOException) result;
+    }
+
+    /**
+     * Restores a {@link MongoScope} from a snapshot file.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MongoScope read(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Restores a {@link MongoScope} from a snapshot stream.
+     * 
+     * @param in
+     * @return a scope in the state the snapshot was taken in, the restored
+     *         functions run in interpreted mode and scripts executed
+     *         afterwards at the optimization level of the {@link Context}
+     *         (call {@link MongoScope#setInterpretedOnly(boolean)} before
+     *         executing any to snapshot the scope again)
+     * @throws IOException
+     */
+    public static MongoScope read(final InputStream in) throws IOException {
+        final MongoScope mongoScope = createBaselineScope(false);
+        Object result = MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                try {
+                    readSnapshot(mongoScope, in);
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+        if (result instanceof IOException)
+            throw (IOException) result;
+        return mongoScope;
+    }
+
+    private static MongoScope createBaselineScope(boolean interpretedOnly) {
+        return (MongoScope) MongoRuntime
+                .call(new MongoScope.InitMongoScopeAction(false,
+                        interpretedOnly));
+    }
+
+    private static void writeSnapshot(Context cx, MongoScope mongoScope,
+            MongoScope baseline, OutputStream out) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        List<String> excludedNames = new ArrayList<String>();
+        Set<Object> visited = Collections
+                .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        Set<Object> baselineIds = new HashSet<Object>();
+        for (Object id : baseline.getAllIds()) {
+            // reading lazy placeholders would load them
+            if ((id instanceof String)
+                    && baseline.isLazyApiPlaceholder((String) id))
+                continue;
+            baselineIds.add(id);
+            Object value = getOwn(mongoScope, id);
+            if ((value == Scriptable.NOT_FOUND)
+                    || !isBaselineValue(value, getOwn(baseline, id)))
+                continue;
+            // the scope itself is always referenced by name
+            if (!(id instanceof String) || !(value instanceof Scriptable)
+                    || (value == mongoScope))
+                continue;
+            String name = (String) id;
+            excludedNames.add(name);
+            diff(cx, name, (Scriptable) value, mongoScope,
+                    (Scriptable) getOwn(baseline, id), baseline, snapshot,
+                    excludedNames, visited);
+            if (value instanceof BaseFunction) {
+                Object prototype = ScriptableObject.getProperty(
+                        (Scriptable) value, "prototype");
+                Object baselinePrototype = ScriptableObject.getProperty(
+                        (Scriptable) getOwn(baseline, id), "prototype");
+                if ((prototype instanceof Scriptable)
+                        && (prototype != mongoScope)
+                        && isBaselineValue(prototype, baselinePrototype)) {
+                    excludedNames.add(name + ".prototype");
+                    diff(cx, name + ".prototype", (Scriptable) prototype,
+                            mongoScope, (Scriptable) baselinePrototype,
+                            baseline, snapshot, excludedNames, visited);
+                }
+            }
+        }
+        List<Property> globals = new ArrayList<Property>();
+        for (Object id : mongoScope.getAllIds()) {
+            if ((id instanceof String)
+                    && mongoScope.isLazyApiPlaceholder((String) id))
+                continue;
+            Object value = getOwn(mongoScope, id);
+            if (!baselineIds.contains(id)
+                    || !isBaselineValue(value, getOwn(baseline, id)))
+                globals.add(new Property(id, value, getAttributes(mongoScope,
+                        id)));
+        }
+        snapshot.patches.put("", globals);
+        snapshot.useMongoShellWriteConcern = mongoScope
+                .useMongoShellWriteConcern();
+        snapshot.stdoutMongoErrorMessages = mongoScope
+                .isStdoutMongoErrorMessages();
+        snapshot.directBSONDecoding = mongoScope.isDirectBSONDecoding();
+        snapshot.directBSONEncoding = mongoScope.isDirectBSONEncoding();
+        snapshot.lazyBSONDecoding = mongoScope.isLazyBSONDecoding();
+        snapshot.typedArrayDecoding = mongoScope.isTypedArrayDecoding();
+
+        ScriptableOutputStream sout = new ScriptableOutputStream(out,
+                mongoScope);
+        for (String name : excludedNames)
+            sout.addOptionalExcludedName(name);
+        sout.writeInt(FORMAT_VERSION);
+        // read before the snapshot, which may reference their globals
+        sout.writeObject(new HashSet<String>(mongoScope
+                .getLoadedLazyApiFiles()));
+        sout.writeObject(snapshot);
+        sout.flush();
+    }
+
+    private static void readSnapshot(MongoScope mongoScope, InputStream in)
+            throws IOException {
+        ScriptableInputStream sin = new ScriptableInputStream(in, mongoScope);
+        int formatVersion = sin.readInt();
+        if (formatVersion != FORMAT_VERSION)
+            throw new IOException("unsupported MongoScope snapshot version: "
+                    + formatVersion);
+        Snapshot snapshot;
+        try {
+            @SuppressWarnings("unchecked")
+            Set<String> loadedLazyApiFiles = (Set<String>) sin.readObject();
+            for (String jsSetupFile : loadedLazyApiFiles)
+                mongoScope.loadLazyApiFile(jsSetupFile);
+            snapshot = (Snapshot) sin.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("could not read MongoScope snapshot", e);
+        }
+        for (Map.Entry<String, List<Property>> patch : snapshot.patches
+                .entrySet()) {
+            Object target = patch.getKey().length() == 0 ? mongoScope
+                    : lookup(mongoScope, patch.getKey());
+            if (!(target instanceof ScriptableObject))
+                throw new IOException("could not find " + patch.getKey()
+                        + " upon MongoScope snapshot restore");
+            for (Property property : patch.getValue())
+                property.applyTo((ScriptableObject) target, mongoScope);
+        }
+        mongoScope.setUseMongoShellWriteConcern(snapshot.useMongoShellWriteConcern);
+        mongoScope.setStdoutMongoErrorMessages(snapshot.stdoutMongoErrorMessages);
+        mongoScope.setDirectBSONDecoding(snapshot.directBSONDecoding);
+        mongoScope.setDirectBSONEncoding(snapshot.directBSONEncoding);
+        mongoScope.setLazyBSONDecoding(snapshot.lazyBSONDecoding);
+        mongoScope.setTypedArrayDecoding(snapshot.typedArrayDecoding);
+    }
+
+    /**
+     * Records the own properties of a baseline object that differ from the
+     * baseline scope, the same for the plain objects it holds.
+     */
+    private static void diff(Context cx, String name, Scriptable object,
+            MongoScope mongoScope, Scriptable baselineObject,
+            MongoScope baseline, Snapshot snapshot,
+            List<String> excludedNames, Set<Object> visited) {
+        // E4X objects treat property access as XML queries, Java packages
+        // create sub-packages on access
+        if (!(object instanceof ScriptableObject)
+                || (object instanceof XMLObject)
+                || (object instanceof NativeJavaPackage)
+                || !visited.add(object))
+            return;
+        Object[] allIds;
+        try {
+            allIds = ((ScriptableObject) object).getAllIds();
+        } catch (IllegalArgumentException e) {
+            // some builtins cannot enumerate all their ids (ex. ArrayBuffer
+            // in Rhino 1.7.7), scripts are not expected to patch those
+            return;
+        }
+        List<Property> properties = new ArrayList<Property>();
+        Set<Object> ids = new HashSet<Object>();
+        for (Object id : allIds) {
+            ids.add(id);
+            Object value = getOwnValue(cx, mongoScope, object, id);
+            // ids not backed by a plain property (ex. the "environment"
+            // global) are left alone too
+            if ((value == ACCESSOR) || (value == Scriptable.NOT_FOUND))
+                continue;
+            // builtins initialized on demand (ex. RegExp.prototype methods)
+            // are neither patches nor serializable
+            if (value instanceof IdFunctionObject)
+                continue;
+            Object baselineValue = getOwnValue(cx, baseline, baselineObject,
+                    id);
+            if ((baselineValue == Scriptable.NOT_FOUND)
+                    || !isBaselineValue(value, baselineValue)) {
+                properties.add(new Property(id, value, getAttributes(
+                        (ScriptableObject) object, id)));
+            } else if ((value instanceof NativeObject)
+                    && (id instanceof String)
+                    && (((String) id).indexOf('.') < 0)) {
+                // ex. the objects the API defines its helpers on
+                String qualifiedName = name + "." + id;
+                excludedNames.add(qualifiedName);
+                diff(cx, qualifiedName, (Scriptable) value, mongoScope,
+                        (Scriptable) baselineValue, baseline, snapshot,
+                        excludedNames, visited);
+            }
+        }
+        if (baselineObject instanceof ScriptableObject) {
+            for (Object id : ((ScriptableObject) baselineObject).getAllIds()) {
+                if (!ids.contains(id))
+                    properties.add(new Property(id));
+            }
+        }
+        if (!properties.isEmpty())
+            snapshot.patches.put(name, properties);
+    }
+
+    /**
+     * @return true if the value found in the snapshot scope can be considered
+     *         the same as the one found in the baseline scope
+     */
+    private static boolean isBaselineValue(Object value, Object baselineValue) {
+        if ((value instanceof NativeFunction)
+                || (baselineValue instanceof NativeFunction))
+            return (value instanceof NativeFunction)
+                    && (baselineValue instanceof NativeFunction)
+                    && isSameFunction((NativeFunction) value,
+                            (NativeFunction) baselineValue);
+        if ((value instanceof Scriptable)
+                && (baselineValue instanceof Scriptable))
+            return value.getClass() == baselineValue.getClass();
+        return (value == baselineValue)
+                || ((value != null) && value.equals(baselineValue));
+    }
+
+    /**
+     * @return true if both functions are instances of the same compiled class
+     *         or interpreted from the same source
+     */
+    private static boolean isSameFunction(NativeFunction function,
+            NativeFunction baselineFunction) {
+        if (function.getClass() != baselineFunction.getClass())
+            return false;
+        if (!INTERPRETED_FUNCTION_CLASS.equals(function.getClass().getName()))
+            return true;
+        String source = function.getEncodedSource();
+        return (source != null)
+                && source.equals(baselineFunction.getEncodedSource());
+    }
+
+    /**
+     * Reads an own property through its property descriptor, so that getters
+     * (ex. the ones of the Java adaptor prototypes) are not invoked.
+     * 
+     * @return the value, {@link #ACCESSOR} or {@link Scriptable#NOT_FOUND}
+     */
+    private static Object getOwnValue(Context cx, Scriptable scope,
+            Scriptable object, Object id) {
+        Object descriptor = ScriptableObject.callMethod(cx,
+                (Scriptable) ScriptableObject.getProperty(scope, "Object"),
+                "getOwnPropertyDescriptor", new Object[] { object, id });
+        if (!(descriptor instanceof Scriptable))
+            return Scriptable.NOT_FOUND;
+        if (ScriptableObject.hasProperty((Scriptable) descriptor, "get")
+                || ScriptableObject.hasProperty((Scriptable) descriptor, "set"))
+            return ACCESSOR;
+        return ScriptableObject.getProperty((Scriptable) descriptor, "value");
+    }
+
+    private static Object getOwn(Scriptable object, Object id) {
+        if (id instanceof String)
+            return object.get((String) id, object);
+        else
+            return object.get(((Number) id).intValue(), object);
+    }
+
+    private static int getAttributes(ScriptableObject object, Object id) {
+        if (id instanceof String)
+            return object.getAttributes((String) id);
+        else
+            return object.getAttributes(((Number) id).intValue());
+    }
+
+    private static Object lookup(Scriptable scope, String qualifiedName) {
+        Object result = scope;
+        for (String name : qualifiedName.split("\\.")) {
+            if (!(result instanceof Scriptable))
+                return null;
+            result = ScriptableObject.getProperty((Scriptable) result, name);
+        }
+        return result;
+    }
+
+    private static final class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = -6400364474036104286L;
+
+        /**
+         * Qualified name of the patched object ("" for the scope itself) to
+         * the properties to define on it.
+         */
+        private final LinkedHashMap<String, List<Property>> patches = new LinkedHashMap<String, List<Property>>();
+        private boolean useMongoShellWriteConcern;
+        private boolean stdoutMongoErrorMessages;
+        private boolean directBSONDecoding;
+        private boolean directBSONEncoding;
+        private boolean lazyBSONDecoding;
+        private boolean typedArrayDecoding;
+    }
+
+    private static final class Property implements Serializable {
+
+        private static final long serialVersionUID = 3373616003981736372L;
+
+        private final Object id;
+        private final Object value;
+        private final int attributes;
+        private final boolean deleted;
+
+        private Property(Object id, Object value, int attributes) {
+            this.id = id;
+            this.value = value;
+            this.attributes = attributes;
+            this.deleted = false;
+        }
+
+        private Property(Object id) {
+            this.id = id;
+            this.value = null;
+            this.attributes = ScriptableObject.EMPTY;
+            this.deleted = true;
+        }
+
+        private void applyTo(ScriptableObject target, MongoScope mongoScope) {
+            if (id instanceof String) {
+                String name = (String) id;
+                if (deleted) {
+                    target.setAttributes(name, ScriptableObject.EMPTY);
+                    target.delete(name);
+                } else if ((target == mongoScope)
+                        && mongoScope.isLazyApiPlaceholder(name)) {
+                    mongoScope.putLazyApiGlobal(name, value);
+                    target.setAttributes(name, attributes);
+                } else {
+                    target.defineProperty(name, value, attributes);
+                }
+            } else {
+                int index = ((Number) id).intValue();
+                if (deleted) {
+                    target.setAttributes(index, ScriptableObject.EMPTY);
+                    target.delete(index);
+                } else {
+                    target.put(index, target, value);
+                    target.setAttributes(index, attributes);
+                }
+            }
+        }
+    }
+
+}
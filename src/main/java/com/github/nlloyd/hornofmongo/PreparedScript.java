@@ -0,0 +1,175 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+
+/**
+ * Handle to a script compiled once against a {@link MongoScope} and executed
+ * repeatedly with different parameters, created through
+ * {@link MongoRuntime#prepare(MongoScope, String, String)}.
+ * 
+ * Parameters are bound as globals of the {@link MongoScope} for the duration
+ * of an execution, any global they shadow is restored afterwards. Java values
+ * (ex. {@link org.bson.BSONObject}, {@link java.util.List},
+ * {@link java.util.Date}, {@link org.bson.types.ObjectId}) are converted
+ * through {@link BSONizer}, JS values are bound as is.
+ * 
+ * Like the {@link MongoScope} it is bound to, a {@link PreparedScript} must
+ * not be executed by several threads at once.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class PreparedScript {
+
+    private final MongoScope mongoScope;
+    private final String scriptName;
+    private final Script script;
+
+    PreparedScript(MongoScope mongoScope, String scriptName, String source) {
+        this.mongoScope = mongoScope;
+        this.scriptName = scriptName;
+        this.script = (Script) MongoRuntime.call(new CompileAction(mongoScope,
+                scriptName, source));
+    }
+
+    public MongoScope getScope() {
+        return mongoScope;
+    }
+
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    /**
+     * Executes the script without parameters.
+     * 
+     * @return the result of the script
+     */
+    public Object execute() {
+        return execute(Collections.<String, Object> emptyMap());
+    }
+
+    /**
+     * Executes the script with the given parameters bound as globals.
+     * 
+     * @param parameters
+     * @return the result of the script
+     */
+    public Object execute(Map<String, ?> parameters) {
+        String[] names = new String[parameters.size()];
+        Object[] values = new Object[names.length];
+        int i = 0;
+        // converted before entering the execute action as BSONizer runs
+        // actions of its own
+        for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+            names[i] = parameter.getKey();
+            values[i] = toJS(parameter.getValue());
+            i++;
+        }
+        return MongoRuntime.call(new ExecuteAction(this, names, values));
+    }
+
+    private Object toJS(Object value) {
+        if ((value == null) || (value instanceof Scriptable)
+                || (value instanceof Undefined) || (value instanceof String)
+                || (value instanceof Boolean) || (value instanceof Double))
+            return value;
+        Object jsValue = BSONizer.convertBSONtoJS(mongoScope, value);
+        if ((jsValue instanceof Scriptable) || (jsValue instanceof String)
+                || (jsValue instanceof Number) || (jsValue instanceof Boolean))
+            return jsValue;
+        return Context.javaToJS(jsValue, mongoScope);
+    }
+
+    private static class CompileAction extends MongoAction {
+
+        private final String scriptName;
+        private final String source;
+
+        public CompileAction(MongoScope mongoScope, String scriptName,
+                String source) {
+            super(mongoScope);
+            this.scriptName = scriptName;
+            this.source = source;
+        }
+
+        @Override
+        protected Object doRun(Context cx) {
+            return cx.compileString(source, scriptName, 0, null);
+        }
+
+    }
+
+    private static class ExecuteAction extends MongoAction {
+
+        private final PreparedScript preparedScript;
+        private final String[] names;
+        private final Object[] values;
+
+        public ExecuteAction(PreparedScript preparedScript, String[] names,
+                Object[] values) {
+            super(preparedScript.mongoScope);
+            this.preparedScript = preparedScript;
+            this.names = names;
+            this.values = values;
+        }
+
+        @Override
+        protected Object doRun(Context cx) {
+            Object[] shadowed = new Object[names.length];
+            for (int i = 0; i < names.length; i++) {
+                shadowed[i] = mongoScope.get(names[i], mongoScope);
+                ScriptableObject.putProperty(mongoScope, names[i], values[i]);
+            }
+            try {
+                return preparedScript.script.exec(cx, mongoScope);
+            } finally {
+                for (int i = 0; i < names.length; i++) {
+                    if (shadowed[i] == Scriptable.NOT_FOUND) {
+                        // a var declaration makes the global permanent
+                        if (mongoScope.has(names[i], mongoScope)) {
+                            mongoScope.setAttributes(names[i],
+                                    ScriptableObject.EMPTY);
+                            mongoScope.delete(names[i]);
+                        }
+                    } else
+                        ScriptableObject.putProperty(mongoScope, names[i],
+                                shadowed[i]);
+                }
+            }
+        }
+
+    }
+
+}
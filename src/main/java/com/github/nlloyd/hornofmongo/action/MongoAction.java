@@ -51,13 +51,24 @@ public abstract class MongoAction implements ContextAction {
      * Rhino engine not properly setting parent scope and prototype for a Scriptable 
      * instance).
      * 
+     * Scopes flagged as {@link MongoScope#isInterpretedOnly()} are executed with
+     * the optimization level of the {@link Context} set to -1 for the duration
+     * of the action.
+     * 
      * @see org.mozilla.javascript.ContextAction#run(org.mozilla.javascript.Context)
      */
     @Override
     public Object run(Context cx) {
         if(cx instanceof MongoContext)
             ((MongoContext)cx).updateExecutingMongoScope(mongoScope);
-        return doRun(cx);
+        int optimizationLevel = cx.getOptimizationLevel();
+        if ((mongoScope != null) && mongoScope.isInterpretedOnly())
+            cx.setOptimizationLevel(-1);
+        try {
+            return doRun(cx);
+        } finally {
+            cx.setOptimizationLevel(optimizationLevel);
+        }
     }
 
     /**
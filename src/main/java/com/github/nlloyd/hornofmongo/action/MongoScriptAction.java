@@ -32,9 +32,11 @@ import java.io.StringReader;
 
 import org.apache.commons.lang3.StringUtils;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 
+import com.github.nlloyd.hornofmongo.CompiledScriptCache;
 import com.github.nlloyd.hornofmongo.MongoScope;
 import com.mongodb.MongoException;
 
@@ -139,8 +141,7 @@ public class MongoScriptAction extends MongoAction {
                 cmdCheck.append("__iscmd__ = shellHelper[\"");
                 cmdCheck.append(cmd);
                 cmdCheck.append("\"];");
-                cx.evaluateString(mongoScope, cmdCheck.toString(),
-                        "(shellhelp1)", 0, null);
+                evaluate(cx, cmdCheck.toString(), "(shellhelp1)");
                 if (Context.toBoolean(ScriptableObject.getProperty(
                         mongoScope, "__iscmd__"))) {
                     StringBuilder cmdScript = new StringBuilder();
@@ -150,8 +151,7 @@ public class MongoScriptAction extends MongoAction {
                     cmdScript.append(script.substring(cmd.length()));
                     cmdScript.append("\");");
                     try {
-                    cx.evaluateString(mongoScope, cmdScript.toString(),
-                            "(shellhelp2)", 0, null);
+                    evaluate(cx, cmdScript.toString(), "(shellhelp2)");
                     } finally {
                         wasCmd = true;
                     }
@@ -160,12 +160,26 @@ public class MongoScriptAction extends MongoAction {
         }
 
         if (!wasCmd) {
-            result = cx.evaluateString(mongoScope, script, scriptName, 0, null);
+            result = evaluate(cx, script, scriptName);
         }
 
         return result;
     }
 
+    /**
+     * Executes the given script against the {@link MongoScope}, reusing the
+     * {@link Script} compiled for an identical script when possible.
+     * 
+     * @param cx
+     * @param script
+     * @param name
+     * @return
+     */
+    private Object evaluate(Context cx, String script, String name) {
+        return CompiledScriptCache.getScript(cx, script, name).exec(cx,
+                mongoScope);
+    }
+
     /**
      * Borrowed from Rhino's Parser class.
      * 
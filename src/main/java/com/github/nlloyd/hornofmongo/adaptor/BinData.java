@@ -21,6 +21,8 @@
  */
 package com.github.nlloyd.hornofmongo.adaptor;
 
+import java.nio.ByteBuffer;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.mozilla.javascript.Context;
@@ -28,14 +30,29 @@ import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
+import com.github.nlloyd.hornofmongo.MongoScope;
+
 /**
+ * BinData holds its payload as raw bytes. The base64 and hex forms are only
+ * computed when a script (or toString()) asks for them and are then cached.
+ * 
+ * Byte arrays handed to {@link #setValues(int, Object)} are wrapped, not
+ * copied, and {@link #getDataBytes()} returns that same array; callers must
+ * treat it as read-only.
+ * 
  * @author nlloyd
  * 
  */
 public class BinData extends ScriptableMongoObject {
 
+    private static final byte[] EMPTY_DATA = new byte[] {};
+
     private int type;
-    private String data;
+    private byte[] data = EMPTY_DATA;
+
+    // lazily computed views of data
+    private transient String base64;
+    private transient String hex;
 
     /**
 	 * 
@@ -45,6 +62,23 @@ public class BinData extends ScriptableMongoObject {
     public BinData() {
     }
 
+    /**
+     * Java-side constructor wrapping the given bytes without any base64
+     * round trip.
+     */
+    public BinData(int type, byte[] data) {
+        super();
+        setValues(type, data);
+    }
+
+    /**
+     * Creates a BinData bound to the given scope wrapping the given bytes.
+     */
+    public static BinData newInstance(MongoScope mongoScope, int type,
+            byte[] data) {
+        return bindToScope(new BinData(type, data), mongoScope, "BinData");
+    }
+
     @JSConstructor
     public BinData(int type, Object obj) {
         super();
@@ -60,6 +94,14 @@ public class BinData extends ScriptableMongoObject {
                     "Error: BinData takes 2 arguments -- BinData(subtype,data)"));
     }
 
+    /**
+     * @param type
+     *            the BinData subtype (0..255)
+     * @param obj
+     *            a byte[] (wrapped as-is), a {@link ByteBuffer} (its remaining
+     *            bytes, copied only if they are not exactly a backing array)
+     *            or anything else, which is taken as a base64 string
+     */
     public void setValues(int type, Object obj) {
         // carried over from sm_db.cpp, not v8_db.cpp which doesn't have this
         // check for some reason
@@ -68,16 +110,29 @@ public class BinData extends ScriptableMongoObject {
                     "invalid BinData subtype -- range is 0..255 see bsonspec.org");
         }
         this.type = type;
-        byte[] tmpData = new byte[] {};
+        this.base64 = null;
+        this.hex = null;
         if (obj instanceof byte[]) {
-            tmpData = (byte[]) obj;
-            this.data = Base64.encodeBase64String(tmpData);
+            this.data = (byte[]) obj;
+        } else if (obj instanceof ByteBuffer) {
+            this.data = toBytes((ByteBuffer) obj);
         } else {
-            this.data = Context.toString(obj);
-            tmpData = Base64.decodeBase64(this.data);
+            // keep the caller's string, it is what toString() has always shown
+            this.base64 = Context.toString(obj);
+            this.data = Base64.decodeBase64(this.base64);
         }
         put("type", this, type);
-        put("len", this, tmpData.length);
+        put("len", this, data.length);
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && (buffer.arrayOffset() == 0)
+                && (buffer.position() == 0)
+                && (buffer.remaining() == buffer.array().length))
+            return buffer.array();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
     }
 
     /**
@@ -90,18 +145,21 @@ public class BinData extends ScriptableMongoObject {
 
     @JSFunction
     public String toString() {
-        return "BinData(" + type + ",\"" + data + "\")";
+        return "BinData(" + type + ",\"" + base64() + "\")";
     }
 
     @JSFunction
     public String base64() {
-        return data;
+        if (base64 == null)
+            base64 = Base64.encodeBase64String(data);
+        return base64;
     }
 
     @JSFunction
     public String hex() {
-        String hexStr = Hex.encodeHexString(Base64.decodeBase64(this.data));
-        return hexStr;
+        if (hex == null)
+            hex = Hex.encodeHexString(data);
+        return hex;
     }
 
     public int getType() {
@@ -109,10 +167,21 @@ public class BinData extends ScriptableMongoObject {
     }
 
     public String getData() {
-        return data;
+        return base64();
     }
 
+    /**
+     * @return the raw payload, shared with this BinData and not to be
+     *         modified
+     */
     public byte[] getDataBytes() {
-        return Base64.decodeBase64(this.data);
+        return data;
+    }
+
+    /**
+     * @return a read-only view of the raw payload
+     */
+    public ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 }
@@ -22,6 +22,7 @@
 package com.github.nlloyd.hornofmongo.adaptor;
 
 import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
 import com.github.nlloyd.hornofmongo.util.BSONizer;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -100,7 +101,11 @@ public class InternalCursor extends ScriptableMongoObject {
         } else {
             try {
                 DBObject bsonNext = cursor.next();
-                next = BSONizer.convertBSONtoJS(mongoScope, bsonNext);
+                if (bsonNext instanceof ScriptableDBObject)
+                    next = ((ScriptableDBObject) bsonNext).getScriptable();
+                else
+                    next = BSONizer.convertBSONtoJS(mongoScope, cursor
+                            .getCollection().getFullName(), bsonNext);
             } catch (MongoException me) {
                 handleMongoException(me);
             }
@@ -26,6 +26,10 @@ import com.github.nlloyd.hornofmongo.MongoScope;
 import com.github.nlloyd.hornofmongo.action.NewInstanceAction;
 import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONDecoder;
 import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONEncoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSDecoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder;
+import com.github.nlloyd.hornofmongo.bson.LazyBSONJSDecoder;
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
 import com.github.nlloyd.hornofmongo.util.BSONizer;
 import com.mongodb.BasicDBObject;
 import com.mongodb.CommandResult;
@@ -33,6 +37,7 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.InsertOptions;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
@@ -40,6 +45,8 @@ import com.mongodb.MongoOptions;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -52,6 +59,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * JavaScript host Mongo object that acts as an adaptor between the JavaScript
@@ -72,12 +81,27 @@ public class Mongo extends ScriptableMongoObject {
      */
     public static final String MONGO_CLIENT_URI_PREFIX = "mongodb://";
 
-    protected com.mongodb.Mongo innerMongo;
+    /**
+     * ContinueOnError bit of the flags passed by the shell's insert
+     */
+    public static final int INSERT_CONTINUE_ON_ERROR = 1;
+
+    /**
+     * Not serialized, a deserialized instance reconnects on first use.
+     */
+    protected transient com.mongodb.Mongo innerMongo;
 
     protected List<ServerAddress> hosts;
-	protected MongoOptions mongoOptions;
+	protected transient MongoOptions mongoOptions;
 	protected int options;
 
+    /**
+     * Driver collections by full namespace, with the Horn of Mongo encoder
+     * and decoder factories already set. Not serialized, the handles belong
+     * to the current innerMongo.
+     */
+    protected transient ConcurrentMap<String, DBCollection> collections;
+
     public Mongo() throws UnknownHostException {
         super();
     }
@@ -146,6 +170,7 @@ public class Mongo extends ScriptableMongoObject {
 			        .dbEncoderFactory(HornOfMongoBSONEncoder.FACTORY).build();
 	        this.innerMongo = new com.mongodb.MongoClient(this.hosts,
                     clientOptions);
+	        this.collections = null;
 	        if(options != 0)
 	            this.innerMongo.setOptions(options);
         }
@@ -156,6 +181,7 @@ public class Mongo extends ScriptableMongoObject {
     public void close() {
         if (innerMongo != null)
             innerMongo.close();
+        collections = null;
     }
 
     /**
@@ -178,10 +204,49 @@ public class Mongo extends ScriptableMongoObject {
         }
     }
 
+    /**
+     * @return the wrapped client, reconnected if this instance was restored
+     *         from a serialized {@link MongoScope}
+     */
     public com.mongodb.Mongo getInnerMongo() {
+        if (innerMongo == null) {
+            try {
+                initMongoConnection();
+                mongoScope.addMongoConnection(this);
+            } catch (UnknownHostException e) {
+                Context.throwAsScriptRuntimeEx(e);
+            }
+        }
         return innerMongo;
     }
 
+    /**
+     * @param ns
+     *            the full namespace (db.collection)
+     * @return the driver collection for the namespace, configured with the
+     *         Horn of Mongo encoder and decoder factories once and cached
+     */
+    protected DBCollection getCollection(final String ns) {
+        com.mongodb.Mongo mongo = getInnerMongo();
+        ConcurrentMap<String, DBCollection> collections = this.collections;
+        if (collections == null) {
+            collections = new ConcurrentHashMap<String, DBCollection>();
+            this.collections = collections;
+        }
+        DBCollection collection = collections.get(ns);
+        if (collection == null) {
+            int dbSeparatorIdx = ns.indexOf('.');
+            collection = mongo.getDB(ns.substring(0, dbSeparatorIdx))
+                    .getCollection(ns.substring(dbSeparatorIdx + 1));
+            collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
+            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection existing = collections.putIfAbsent(ns, collection);
+            if (existing != null)
+                collection = existing;
+        }
+        return collection;
+    }
+
     /**
      * @see org.mozilla.javascript.ScriptableObject#getClassName()
      */
@@ -206,15 +271,16 @@ public class Mongo extends ScriptableMongoObject {
             bsonQuery = (DBObject) rawQuery;
         if (rawFields instanceof DBObject)
             bsonFields = (DBObject) rawFields;
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        String collectionName = ns.substring(ns.indexOf('.') + 1);
-        if ("$cmd".equals(collectionName)) {
+        // commands run against <db>.$cmd, other namespaces are collections
+        if (ns.endsWith(".$cmd") && (ns.indexOf('.') == (ns.length() - 5))) {
+            com.mongodb.DB db = getInnerMongo().getDB(
+                    ns.substring(0, ns.length() - 5));
             try {
                 if(options == 0)
-                    options = innerMongo.getOptions();
+                    options = getInnerMongo().getOptions();
 //GC: 16/11/15 fixed for v3
 //                CommandResult cmdResult = db.command(bsonQuery, options,
-                CommandResult cmdResult = db.command(bsonQuery, innerMongo.getReadPreference(),
+                CommandResult cmdResult = db.command(bsonQuery, getInnerMongo().getReadPreference(),
                         HornOfMongoBSONEncoder.FACTORY.create());
 //GC: 16/11/15 removed for v3
 //                handlePostCommandActions(db, bsonQuery);
@@ -236,9 +302,7 @@ public class Mongo extends ScriptableMongoObject {
                 handleMongoException(me);
             }
         } else {
-            DBCollection collection = db.getCollection(collectionName);
-            collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
-            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection collection = getCollection(ns);
             DBObject specialFields = null;
             if(bsonQuery.get("query") instanceof DBObject) {
                 specialFields = bsonQuery;
@@ -246,6 +310,12 @@ public class Mongo extends ScriptableMongoObject {
             }
             DBCursor cursor = collection.find(bsonQuery, bsonFields).skip(skip)
                     .batchSize(batchSize).limit(limit).addOption(options);
+            if (mongoScope.isLazyBSONDecoding())
+                cursor.setDecoderFactory(new LazyBSONJSDecoder.LazyBSONJSDecoderFactory(
+                        mongoScope));
+            else if (mongoScope.isDirectBSONDecoding())
+                cursor.setDecoderFactory(new HornOfMongoJSDecoder.HornOfMongoJSDecoderFactory(
+                        mongoScope));
             if(specialFields != null) {
                 for(String key : specialFields.keySet()) {
                     if(!"query".equals(key))
@@ -265,35 +335,36 @@ public class Mongo extends ScriptableMongoObject {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @JSFunction
     public void insert(final String ns, Object obj, int options) {
-        Object rawObj = BSONizer.convertJStoBSON(obj, true);
+        boolean directEncoding = mongoScope.isDirectBSONEncoding()
+                && !ns.endsWith("system.indexes");
+        Object rawObj = directEncoding ? wrapJSObject(obj) : BSONizer
+                .convertJStoBSON(mongoScope, ns, obj, true);
         DBObject bsonObj = null;
         if (rawObj instanceof DBObject)
             bsonObj = (DBObject) rawObj;
 
         try {
-            int dbSeparatorIdx = ns.indexOf('.');
-            com.mongodb.DB db = innerMongo.getDB(ns
-                    .substring(0, dbSeparatorIdx));
-            String collectionName = ns.substring(dbSeparatorIdx + 1);
-            DBCollection collection = db.getCollection(collectionName);
-            collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
-            collection.setDBDecoderFactory(HornOfMongoBSONDecoder.FACTORY);
+            DBCollection collection = getCollection(ns);
+            com.mongodb.DB db = collection.getDB();
             // unfortunately the Java driver does not expose the _allow_dot
             // argument in insert calls so we need to translate system.indexes
             // inserts into index creation calls through the java driver
-            if (collectionName.endsWith("system.indexes")) {
+            if (ns.endsWith("system.indexes")) {
                   db.getCollection("system.indexes").insert(Arrays.asList(bsonObj));
             } else {
-                int oldOptions = collection.getOptions();
-                collection.setOptions(options);
+                // the flags travel with this insert, the shared collection
+                // is left untouched
+                InsertOptions insertOptions = new InsertOptions()
+                        .continueOnError((options & INSERT_CONTINUE_ON_ERROR) != 0);
+                if (directEncoding)
+                    insertOptions.dbEncoder(HornOfMongoJSEncoder.FACTORY.create());
 
                 List insertObj = null;
                 if (rawObj instanceof List)
                     insertObj = (List) rawObj;
                 else
                     insertObj = Arrays.asList(rawObj);
-                collection.insert(insertObj);
-                collection.setOptions(oldOptions);
+                collection.insert(insertObj, insertOptions);
             }
             saveLastCalledDB(db);
         } catch (MongoException me) {
@@ -303,19 +374,22 @@ public class Mongo extends ScriptableMongoObject {
 
     @JSFunction
     public void remove(final String ns, Object pattern, boolean justOne) {
-        Object rawPattern = BSONizer.convertJStoBSON(pattern, false);
+        boolean directEncoding = mongoScope.isDirectBSONEncoding();
+        Object rawPattern = directEncoding ? wrapJSObject(pattern) : BSONizer
+                .convertJStoBSON(pattern, false);
         DBObject bsonPattern = null;
         if (rawPattern instanceof DBObject)
             bsonPattern = (DBObject) rawPattern;
 
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        DBCollection collection = db
-                .getCollection(ns.substring(ns.indexOf('.') + 1));
-        collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
+        DBCollection collection = getCollection(ns);
 
         try {
-            collection.remove(bsonPattern);
-            saveLastCalledDB(db);
+            if (directEncoding)
+                collection.remove(bsonPattern, collection.getWriteConcern(),
+                        HornOfMongoJSEncoder.FACTORY.create());
+            else
+                collection.remove(bsonPattern);
+            saveLastCalledDB(collection.getDB());
         } catch (MongoException me) {
             handleMongoException(me);
         }
@@ -324,8 +398,11 @@ public class Mongo extends ScriptableMongoObject {
     @JSFunction
     public void update(final String ns, Object query, Object obj,
             final Boolean upsert, final Boolean multi) {
+        boolean directEncoding = mongoScope.isDirectBSONEncoding();
+        // the java driver encodes update queries with its default encoder
         Object rawQuery = BSONizer.convertJStoBSON(query, false);
-        Object rawObj = BSONizer.convertJStoBSON(obj, true);
+        Object rawObj = directEncoding ? wrapJSObject(obj) : BSONizer
+                .convertJStoBSON(obj, true);
         DBObject bsonQuery = null;
         DBObject bsonObj = null;
         if (rawQuery instanceof DBObject)
@@ -336,19 +413,43 @@ public class Mongo extends ScriptableMongoObject {
         boolean upsertOp = (upsert != null) ? upsert : false;
         boolean multiOp = (multi != null) ? multi : false;
 
-        com.mongodb.DB db = innerMongo.getDB(ns.substring(0, ns.indexOf('.')));
-        DBCollection collection = db
-                .getCollection(ns.substring(ns.indexOf('.') + 1));
-        collection.setDBEncoderFactory(HornOfMongoBSONEncoder.FACTORY);
+        DBCollection collection = getCollection(ns);
 
         try {
-            collection.update(bsonQuery, bsonObj, upsertOp, multiOp);
-            saveLastCalledDB(db);
+            if (directEncoding)
+                collection.update(bsonQuery, bsonObj, upsertOp, multiOp,
+                        collection.getWriteConcern(),
+                        HornOfMongoJSEncoder.FACTORY.create());
+            else
+                collection.update(bsonQuery, bsonObj, upsertOp, multiOp);
+            saveLastCalledDB(collection.getDB());
         } catch (MongoException me) {
             handleMongoException(me);
         }
     }
 
+    /**
+     * Wraps the given JS object (or the JS objects within the given JS array)
+     * in read-only {@link ScriptableDBObject} instances for
+     * {@link HornOfMongoJSEncoder}, so that values put by the driver (ex. a
+     * generated _id) do not show up on the JS objects of the caller, other
+     * values are converted through {@link BSONizer}.
+     * 
+     * @param obj
+     * @return the wrapped object, a {@link List} of them or the converted value
+     */
+    private Object wrapJSObject(Object obj) {
+        if (obj instanceof NativeObject) {
+            return new ScriptableDBObject((NativeObject) obj, true);
+        } else if (obj instanceof NativeArray) {
+            List<Object> wrapped = new ArrayList<Object>();
+            for (Object entry : (NativeArray) obj)
+                wrapped.add(wrapJSObject(entry));
+            return wrapped;
+        }
+        return BSONizer.convertJStoBSON(obj, true);
+    }
+
     /**
      * Run the { logout: 1 } command against the db with the given name.
      * 
@@ -357,8 +458,8 @@ public class Mongo extends ScriptableMongoObject {
      */
     @JSFunction
     public Object logout(final String dbName) {
-        DB db = innerMongo.getDB(dbName);
-        CommandResult result = db.command(new BasicDBObject("logout", 1), innerMongo.getReadPreference());
+        DB db = getInnerMongo().getDB(dbName);
+        CommandResult result = db.command(new BasicDBObject("logout", 1), getInnerMongo().getReadPreference());
         return BSONizer.convertBSONtoJS(mongoScope, result);
     }
 
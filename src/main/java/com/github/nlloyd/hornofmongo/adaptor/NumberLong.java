@@ -32,6 +32,8 @@ import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
+import com.github.nlloyd.hornofmongo.MongoScope;
+
 /**
  * @author nlloyd
  *
@@ -67,6 +69,17 @@ public class NumberLong extends ScriptableMongoObject {
         put("floatApprox", this, realLong);
 	}
 
+    /**
+     * Creates a NumberLong bound to the given scope holding the given value,
+     * with floatApprox set once.
+     */
+    public static NumberLong newInstance(MongoScope mongoScope, long value) {
+        NumberLong numberLong = new NumberLong();
+        numberLong.realLong = value;
+        numberLong.put("floatApprox", numberLong, value);
+        return bindToScope(numberLong, mongoScope, "NumberLong");
+    }
+
     /**
      * @see org.mozilla.javascript.ScriptableObject#getClassName()
      */
@@ -27,6 +27,8 @@ import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSGetter;
 import org.mozilla.javascript.annotations.JSSetter;
 
+import com.github.nlloyd.hornofmongo.MongoScope;
+
 /**
  * @author nlloyd
  *
@@ -59,6 +61,15 @@ public class ObjectId extends ScriptableMongoObject {
 		realObjectId = oid;
 	}
 
+	/**
+	 * Creates an ObjectId bound to the given scope wrapping the given id,
+	 * without generating a new id first as the JS constructor does.
+	 */
+	public static ObjectId newInstance(MongoScope mongoScope,
+			org.bson.types.ObjectId oid) {
+		return bindToScope(new ObjectId(oid), mongoScope, "ObjectId");
+	}
+
 	@Override
 	public String getClassName() {
 		return this.getClass().getSimpleName();
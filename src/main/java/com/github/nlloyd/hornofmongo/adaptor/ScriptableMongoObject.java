@@ -47,6 +47,12 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
      */
     protected MongoScope mongoScope;
 
+    /**
+     * Set once both parent scope and prototype are known, after which property
+     * gets skip {@link #resolveParentAndPrototype()} entirely.
+     */
+    private transient boolean resolved;
+
     public ScriptableMongoObject() {
         super();
     }
@@ -60,7 +66,8 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
      */
     @Override
     public Object get(String name, Scriptable start) {
-        resolveParentAndPrototype();
+        if (!resolved)
+            resolveParentAndPrototype();
         return super.get(name, start);
     }
 
@@ -73,7 +80,8 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
      */
     @Override
     public Object get(int index, Scriptable start) {
-        resolveParentAndPrototype();
+        if (!resolved)
+            resolveParentAndPrototype();
         return super.get(index, start);
     }
 
@@ -100,25 +108,64 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
                 setParentScope(executionScope);
             }
         }
-        if (getPrototype() == null) {
-            Scriptable classPrototype = ScriptableObject.getClassPrototype(
-                    mongoScope, this.getClassName());
-            if (classPrototype == null)
-                Context.throwAsScriptRuntimeEx(new MongoScopeException(
-                        "could not resolve prototype for class: "
-                                + this.getClassName()));
-            setPrototype(classPrototype);
-        }
+        if (getPrototype() == null)
+            setPrototype(resolveClassPrototype(this.getClassName()));
+        resolved = (getParentScope() != null);
+    }
+
+    private Scriptable resolveClassPrototype(String className) {
+        Scriptable classPrototype = ScriptableObject.getClassPrototype(
+                mongoScope, className);
+        if (classPrototype == null)
+            Context.throwAsScriptRuntimeEx(new MongoScopeException(
+                    "could not resolve prototype for class: " + className));
+        return classPrototype;
+    }
+
+    /**
+     * Binds an adaptor instantiated on the java side, already holding its
+     * value, to the given {@link MongoScope} and its class prototype. This is
+     * what a JS constructor call would do, without running the JS constructor
+     * (and the throwaway values it creates) or its reflective dispatch.
+     * 
+     * The class name is passed in as {@link #getClassName()} goes through
+     * {@link Class#getSimpleName()}, which is slow enough to dominate here.
+     * 
+     * @param adaptor
+     * @param mongoScope
+     * @param className
+     *            the JS class name of the adaptor
+     * @return the given adaptor
+     */
+    protected static <T extends ScriptableMongoObject> T bindToScope(
+            T adaptor, MongoScope mongoScope, String className) {
+        ScriptableMongoObject unbound = adaptor;
+        unbound.setParentScope(mongoScope);
+        unbound.setPrototype(unbound.resolveClassPrototype(className));
+        unbound.resolved = true;
+        return adaptor;
     }
 
     /**
      * Overrides {@link ScriptableObject} to capture the top level
      * {@link MongoScope} instance in a local member variable.
+     *
+     * Constructors defined in a shared {@link MongoScope} will hand out that
+     * shared scope as the parent scope, in which case the instance is
+     * re-parented to the child {@link MongoScope} currently executing.
      */
     @Override
     public void setParentScope(Scriptable m) {
         super.setParentScope(m);
         Scriptable topScope = ScriptableObject.getTopLevelScope(this);
+        if ((topScope instanceof MongoScope)
+                && ((MongoScope) topScope).isSharedScope()) {
+            MongoScope childScope = resolveExecutingChildScope((MongoScope) topScope);
+            if (childScope != null) {
+                super.setParentScope(childScope);
+                topScope = childScope;
+            }
+        }
         if (topScope instanceof MongoScope)
             mongoScope = (MongoScope) topScope;
         else
@@ -126,4 +173,21 @@ public abstract class ScriptableMongoObject extends ScriptableObject {
                     + " was not created within a MongoScope!");
     }
 
+    /**
+     * @param sharedScope
+     * @return the {@link MongoScope} executing in the current {@link Context}
+     *         if it is a child of the given shared scope, otherwise null
+     */
+    private static MongoScope resolveExecutingChildScope(MongoScope sharedScope) {
+        Context context = Context.getCurrentContext();
+        if (context instanceof MongoContext) {
+            MongoScope executionScope = ((MongoContext) context)
+                    .getExecutingMongoScope();
+            if ((executionScope != null)
+                    && (executionScope.getPrototype() == sharedScope))
+                return executionScope;
+        }
+        return null;
+    }
+
 }
@@ -26,6 +26,8 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSConstructor;
 
+import com.github.nlloyd.hornofmongo.MongoScope;
+
 /**
  * @author nlloyd
  * 
@@ -53,6 +55,22 @@ public class Timestamp extends ScriptableMongoObject {
         put("i", this, i);
     }
 
+    /**
+     * Creates a Timestamp bound to the given scope holding the given values,
+     * without the string parsing the JS constructor does on its arguments.
+     */
+    public static Timestamp newInstance(MongoScope mongoScope, long t, long i) {
+        return bindToScope(new Timestamp(t, i), mongoScope, "Timestamp");
+    }
+
+    private Timestamp(long t, long i) {
+        super();
+        this.t = t;
+        this.i = i;
+        put("t", this, t);
+        put("i", this, i);
+    }
+
     @JSConstructor
     public Timestamp(Object t, Object i) {
         super();
@@ -0,0 +1,304 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.bson.BSON;
+import org.bson.BSONCallback;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.adaptor.BinData;
+import com.github.nlloyd.hornofmongo.adaptor.NumberLong;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.Bytes;
+import com.mongodb.DBCallback;
+
+/**
+ * {@link DBCallback} that builds JS objects straight from the BSON bytes,
+ * producing the same values as
+ * {@link BSONizer#convertBSONtoJS(Context, MongoScope, Object)} would for the
+ * {@link com.mongodb.DBObject} built by {@link HornOfMongoDBCallback}. Must be
+ * used on a thread with an entered {@link Context}.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSCallback implements DBCallback {
+
+    private final MongoScope mongoScope;
+
+    private Context context;
+
+    /**
+     * Objects and arrays being decoded, arrays are collected in a
+     * {@link List} as their length is only known once done.
+     */
+    private final LinkedList<Object> stack = new LinkedList<Object>();
+    private final LinkedList<String> nameStack = new LinkedList<String>();
+
+    private Object root;
+
+    public HornOfMongoJSCallback(MongoScope mongoScope) {
+        this.mongoScope = mongoScope;
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        context = Context.getCurrentContext();
+        stack.clear();
+        nameStack.clear();
+        root = null;
+    }
+
+    /**
+     * @return a {@link ScriptableDBObject} wrapping the decoded JS object
+     */
+    @Override
+    public Object get() {
+        if (root instanceof Scriptable)
+            return new ScriptableDBObject((Scriptable) root);
+        return root;
+    }
+
+    @Override
+    public BSONCallback createBSONCallback() {
+        return new HornOfMongoJSCallback(mongoScope);
+    }
+
+    @Override
+    public void objectStart() {
+        stack.addLast(context.newObject(mongoScope));
+    }
+
+    @Override
+    public void objectStart(String name) {
+        nameStack.addLast(name);
+        stack.addLast(context.newObject(mongoScope));
+    }
+
+    @Override
+    public Object objectDone() {
+        Scriptable jsObject = (Scriptable) stack.removeLast();
+        if (stack.isEmpty()) {
+            root = jsObject;
+            return jsObject;
+        }
+        Object value = jsObject;
+        // same DBRef detection as com.mongodb.DefaultDBCallback
+        Object[] ids = jsObject.getIds();
+        if ((ids.length >= 2) && "$ref".equals(ids[0])
+                && "$id".equals(ids[1]))
+            value = context.newObject(mongoScope, "DBRef", new Object[] {
+                    jsObject.get("$ref", jsObject),
+                    jsObject.get("$id", jsObject) });
+        put(nameStack.removeLast(), value);
+        return value;
+    }
+
+    @Override
+    public void arrayStart() {
+        stack.addLast(new ArrayList<Object>());
+    }
+
+    @Override
+    public void arrayStart(String name) {
+        nameStack.addLast(name);
+        stack.addLast(new ArrayList<Object>());
+    }
+
+    @Override
+    public Object arrayDone() {
+        @SuppressWarnings("unchecked")
+        List<Object> elements = (List<Object>) stack.removeLast();
+        Scriptable jsArray = null;
+        if (mongoScope.isTypedArrayDecoding()) {
+            jsArray = BSONizer.toTypedArray(context, mongoScope, elements);
+            if (jsArray == null) {
+                // int32 values are kept as is until the array is done, see
+                // gotInt(String, int)
+                for (int i = 0; i < elements.size(); i++)
+                    if (elements.get(i) instanceof Integer)
+                        elements.set(i, Double.valueOf((Integer) elements
+                                .get(i)));
+            }
+        }
+        if (jsArray == null)
+            jsArray = context.newArray(mongoScope, elements.toArray());
+        if (stack.isEmpty())
+            root = jsArray;
+        else
+            put(nameStack.removeLast(), jsArray);
+        return jsArray;
+    }
+
+    @Override
+    public void gotNull(String name) {
+        put(name, null);
+    }
+
+    /**
+     * Undefined is decoded as null, same as {@link HornOfMongoDBCallback}.
+     */
+    @Override
+    public void gotUndefined(String name) {
+        put(name, null);
+    }
+
+    @Override
+    public void gotMinKey(String name) {
+        put(name, context.newObject(mongoScope, "MinKey"));
+    }
+
+    @Override
+    public void gotMaxKey(String name) {
+        put(name, context.newObject(mongoScope, "MaxKey"));
+    }
+
+    @Override
+    public void gotBoolean(String name, boolean value) {
+        put(name, Boolean.valueOf(value));
+    }
+
+    @Override
+    public void gotDouble(String name, double value) {
+        put(name, Double.valueOf(value));
+    }
+
+    @Override
+    public void gotInt(String name, int value) {
+        if (mongoScope.isTypedArrayDecoding()
+                && (stack.getLast() instanceof List))
+            put(name, Integer.valueOf(value));
+        else
+            put(name, Double.valueOf(value));
+    }
+
+    @Override
+    public void gotLong(String name, long value) {
+        put(name, NumberLong.newInstance(mongoScope, value));
+    }
+
+    @Override
+    public void gotDate(String name, long millis) {
+        put(name, context.newObject(mongoScope, "Date",
+                new Object[] { Long.valueOf(millis) }));
+    }
+
+    @Override
+    public void gotString(String name, String value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotSymbol(String name, String value) {
+        put(name, value);
+    }
+
+    @Override
+    public void gotRegex(String name, String pattern, String flags) {
+        // normalized the same way a java.util.regex.Pattern round trip would
+        String options = Bytes.regexFlags(Bytes.regexFlags(flags));
+        put(name, context.newObject(mongoScope, "RegExp", new Object[] {
+                pattern, options }));
+    }
+
+    @Override
+    public void gotTimestamp(String name, int time, int increment) {
+        put(name, Timestamp.newInstance(mongoScope, time, increment));
+    }
+
+    @Override
+    public void gotObjectId(String name, org.bson.types.ObjectId id) {
+        put(name, newObjectId(id));
+    }
+
+    @Override
+    public void gotDBRef(String name, String ns,
+            org.bson.types.ObjectId id) {
+        put(name, context.newObject(mongoScope, "DBRef", new Object[] { ns,
+                newObjectId(id) }));
+    }
+
+    @Deprecated
+    @Override
+    public void gotBinaryArray(String name, byte[] data) {
+        put(name, newBinData(0, data));
+    }
+
+    @Override
+    public void gotBinary(String name, byte type, byte[] data) {
+        if ((type == BSON.B_GENERAL) || (type == BSON.B_BINARY))
+            put(name, newBinData(0, data));
+        else
+            put(name, newBinData(type & 0xFF, data));
+    }
+
+    @Override
+    public void gotUUID(String name, long part1, long part2) {
+        ByteBuffer dataBuffer = ByteBuffer.allocate(16);
+        // mongodb wire protocol is little endian
+        dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        dataBuffer.putLong(part1);
+        dataBuffer.putLong(part2);
+        put(name, newBinData(BSON.B_UUID, dataBuffer.array()));
+    }
+
+    @Override
+    public void gotCode(String name, String code) {
+        put(name, code);
+    }
+
+    @Override
+    public void gotCodeWScope(String name, String code, Object scope) {
+        put(name, code);
+    }
+
+    private Object newObjectId(org.bson.types.ObjectId id) {
+        return ObjectId.newInstance(mongoScope, id);
+    }
+
+    private Object newBinData(int type, byte[] data) {
+        return BinData.newInstance(mongoScope, type, data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void put(String name, Object value) {
+        Object current = stack.getLast();
+        if (current instanceof List)
+            ((List<Object>) current).add(value);
+        else
+            ScriptRuntime.setObjectElem((Scriptable) current, name, value,
+                    context);
+    }
+
+}
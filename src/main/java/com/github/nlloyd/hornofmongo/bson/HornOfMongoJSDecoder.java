@@ -0,0 +1,156 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+
+/**
+ * Decoder building JS objects owned by a {@link MongoScope} straight from the
+ * BSON bytes (see {@link HornOfMongoJSCallback}) instead of building a
+ * {@link DBObject} tree to be converted afterwards. Decoded documents are
+ * returned as {@link ScriptableDBObject} instances.
+ * 
+ * While BSON converters are registered (see
+ * {@link BSONizer#registerBSONConverter(Class, com.github.nlloyd.hornofmongo.util.BSONToJSConverter)})
+ * documents are decoded by {@link HornOfMongoDBCallback} and converted by
+ * {@link BSONizer} instead, so the registered converters apply.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSDecoder extends DefaultDBDecoder {
+
+    public static class HornOfMongoJSDecoderFactory implements
+            DBDecoderFactory {
+
+        private final MongoScope mongoScope;
+
+        public HornOfMongoJSDecoderFactory(MongoScope mongoScope) {
+            this.mongoScope = mongoScope;
+        }
+
+        @Override
+        public DBDecoder create() {
+            return new HornOfMongoJSDecoder(mongoScope);
+        }
+
+        @Override
+        public String toString() {
+            return "HornOfMongoJSDecoder.HornOfMongoJSDecoderFactory";
+        }
+    }
+
+    private final MongoScope mongoScope;
+
+    public HornOfMongoJSDecoder(MongoScope mongoScope) {
+        this.mongoScope = mongoScope;
+    }
+
+    @Override
+    public DBCallback getDBCallback(DBCollection collection) {
+        // brand new callback every time
+        if (BSONizer.hasRegisteredBSONConverters())
+            return new HornOfMongoDBCallback(collection);
+        return new HornOfMongoJSCallback(mongoScope);
+    }
+
+    /**
+     * Decodes within the {@link Context} entered on the current thread, or
+     * enters one if there is none.
+     * 
+     * @see com.mongodb.DefaultDBDecoder#decode(byte[], com.mongodb.DBCollection)
+     */
+    @Override
+    public DBObject decode(final byte[] b, final DBCollection collection) {
+        if (Context.getCurrentContext() != null)
+            return toJS(super.decode(b, collection), collection);
+        return (DBObject) MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return toJS(HornOfMongoJSDecoder.super.decode(b, collection),
+                        collection);
+            }
+        });
+    }
+
+    /**
+     * @see #decode(byte[], DBCollection)
+     */
+    @Override
+    public DBObject decode(final InputStream in, final DBCollection collection)
+            throws IOException {
+        if (Context.getCurrentContext() != null)
+            return toJS(super.decode(in, collection), collection);
+        return (DBObject) MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                try {
+                    return toJS(
+                            HornOfMongoJSDecoder.super.decode(in, collection),
+                            collection);
+                } catch (IOException e) {
+                    throw new MongoException(
+                            "IOException when decoding a document.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param bsonObject
+     * @param collection
+     * @return the given document, converted by {@link BSONizer} and wrapped
+     *         in a {@link ScriptableDBObject} if it was decoded by
+     *         {@link HornOfMongoDBCallback}
+     */
+    private DBObject toJS(DBObject bsonObject, DBCollection collection) {
+        if ((bsonObject == null) || (bsonObject instanceof ScriptableDBObject))
+            return bsonObject;
+        String namespace = (collection == null) ? null : collection
+                .getFullName();
+        return new ScriptableDBObject((Scriptable) BSONizer.convertBSONtoJS(
+                Context.getCurrentContext(), mongoScope, namespace,
+                bsonObject));
+    }
+
+    @Override
+    public String toString() {
+        return "HornOfMongoJSDecoder";
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.Date;
+
+import org.bson.BSONObject;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Wrapper;
+
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+
+/**
+ * Extends HornOfMongoBSONEncoder to write JS objects wrapped in
+ * {@link ScriptableDBObject} straight into BSON, walking the
+ * {@link NativeObject} and {@link NativeArray} graph rather than converting it
+ * to {@link com.mongodb.DBObject} instances first (see
+ * {@link BSONizer#convertJStoBSON(Object, boolean)}).
+ * 
+ * Leaf values (ex. {@link com.github.nlloyd.hornofmongo.adaptor.ObjectId}
+ * instances) are converted one at a time through {@link BSONizer}, values that
+ * still can't be serialized are encoded as Undefined.
+ * 
+ * While JS converters are registered (see
+ * {@link BSONizer#registerJSConverter(Class, com.github.nlloyd.hornofmongo.util.JSToBSONConverter)})
+ * documents are converted by {@link BSONizer} first, so the registered
+ * converters apply.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSEncoder extends HornOfMongoBSONEncoder {
+
+    /**
+     * True while writing a document already converted by {@link BSONizer}.
+     */
+    private boolean converted;
+
+    /**
+     * @see org.bson.BasicBSONEncoder#putObject(org.bson.BSONObject)
+     */
+    @Override
+    public int putObject(BSONObject document) {
+        if (converted || !(document instanceof ScriptableDBObject)
+                || !BSONizer.hasRegisteredJSConverters())
+            return super.putObject(document);
+        ScriptableDBObject scriptableDBObject = (ScriptableDBObject) document;
+        Object bsonObject = BSONizer.convertJStoBSON(
+                scriptableDBObject.getScriptable(), true);
+        ((BSONObject) bsonObject).putAll(scriptableDBObject.getPutFields());
+        converted = true;
+        try {
+            return super.putObject((BSONObject) bsonObject);
+        } finally {
+            converted = false;
+        }
+    }
+
+    /**
+     * @see com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONEncoder#_putObjectField(java.lang.String,
+     *      java.lang.Object)
+     */
+    @Override
+    protected void _putObjectField(String name, Object val) {
+        if (converted || (val == null) || (val instanceof String)
+                || (val instanceof Double) || (val instanceof Boolean)) {
+            // converted already or nothing for BSONizer to convert
+            super._putObjectField(name, val);
+        } else if (val instanceof NativeArray) {
+            putIterable(name, (NativeArray) val);
+        } else if (val instanceof NativeObject) {
+            Date date = null;
+            NativeObject jsObject = (NativeObject) val;
+            if (jsObject.has("$date", jsObject))
+                date = BSONizer.parseSpecialDate(jsObject.get("$date",
+                        jsObject));
+            if (date != null)
+                putDate(name, date);
+            else
+                putJSObject(name, jsObject);
+        } else {
+            super._putObjectField(name, BSONizer.convertJStoBSON(val, true));
+        }
+    }
+
+    /**
+     * Writes the properties of the given JS object as an embedded document,
+     * without going through {@link ScriptableDBObject#keySet()}.
+     * 
+     * @param name
+     * @param jsObject
+     */
+    private void putJSObject(String name, NativeObject jsObject) {
+        putName(name);
+        getBsonWriter().writeStartDocument();
+        for (Object id : jsObject.getIds()) {
+            Object value = (id instanceof Integer) ? jsObject.get(
+                    (Integer) id, jsObject) : jsObject.get(id.toString(),
+                    jsObject);
+            if (value == Scriptable.NOT_FOUND)
+                value = null;
+            else if (value instanceof Wrapper)
+                value = ((Wrapper) value).unwrap();
+            _putObjectField(id.toString(), value);
+        }
+        getBsonWriter().writeEndDocument();
+    }
+
+    public static class HornOfMongoJSEncoderFactory implements
+            DBEncoderFactory {
+        @Override
+        public DBEncoder create() {
+            return new HornOfMongoJSEncoder();
+        }
+
+        @Override
+        public String toString() {
+            return "HornOfMongoJSEncoder.HornOfMongoJSEncoderFactory";
+        }
+
+    }
+
+    public static HornOfMongoJSEncoderFactory FACTORY = new HornOfMongoJSEncoderFactory();
+
+    public HornOfMongoJSEncoder() {
+    }
+
+    @Override
+    public String toString() {
+        return "HornOfMongoJSEncoder";
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bson.LazyBSONObject;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+
+/**
+ * Decoder returning documents as {@link LazyBSONJSObject} instances (wrapped in
+ * {@link ScriptableDBObject}) which only decode the fields scripts read.
+ * 
+ * While BSON converters are registered (see
+ * {@link BSONizer#registerBSONConverter(Class, com.github.nlloyd.hornofmongo.util.BSONToJSConverter)})
+ * documents are returned as is, to be converted by {@link BSONizer} so the
+ * registered converters apply.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class LazyBSONJSDecoder extends LazyDBDecoder {
+
+    public static class LazyBSONJSDecoderFactory implements DBDecoderFactory {
+
+        private final MongoScope mongoScope;
+
+        public LazyBSONJSDecoderFactory(MongoScope mongoScope) {
+            this.mongoScope = mongoScope;
+        }
+
+        @Override
+        public DBDecoder create() {
+            return new LazyBSONJSDecoder(mongoScope);
+        }
+
+        @Override
+        public String toString() {
+            return "LazyBSONJSDecoder.LazyBSONJSDecoderFactory";
+        }
+    }
+
+    private final MongoScope mongoScope;
+
+    public LazyBSONJSDecoder(MongoScope mongoScope) {
+        this.mongoScope = mongoScope;
+    }
+
+    @Override
+    public DBObject decode(byte[] b, DBCollection collection) {
+        return wrap(super.decode(b, collection));
+    }
+
+    @Override
+    public DBObject decode(InputStream in, DBCollection collection)
+            throws IOException {
+        return wrap(super.decode(in, collection));
+    }
+
+    private DBObject wrap(DBObject bsonObject) {
+        if (BSONizer.hasRegisteredBSONConverters())
+            return bsonObject;
+        return new ScriptableDBObject(new LazyBSONJSObject(mongoScope,
+                (LazyBSONObject) bsonObject));
+    }
+
+    @Override
+    public String toString() {
+        return "LazyBSONJSDecoder";
+    }
+
+}
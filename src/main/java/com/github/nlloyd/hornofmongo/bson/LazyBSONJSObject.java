@@ -0,0 +1,247 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.LazyBSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+
+/**
+ * JS object backed by the raw BSON bytes of a document (see
+ * {@link LazyBSONObject}). A field is decoded and cached the first time it is
+ * read, embedded documents are lazy JS objects themselves (converted by
+ * {@link BSONizer} instead while BSON converters are registered).
+ * 
+ * Enumerating the object (ex. for..in, tojson, BSON encoding) or changing it
+ * decodes the fields that haven't been read yet, in their BSON order, after
+ * which it behaves like any other JS object.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class LazyBSONJSObject extends NativeObject {
+
+    private static final long serialVersionUID = -2484135426563917382L;
+
+    private final MongoScope mongoScope;
+
+    /**
+     * The document fields are decoded from, null once materialized.
+     */
+    private LazyBSONObject bsonObject;
+
+    /**
+     * Names of the document fields, read on first access.
+     */
+    private Set<String> bsonKeys;
+
+    public LazyBSONJSObject(MongoScope mongoScope, LazyBSONObject bsonObject) {
+        this.mongoScope = mongoScope;
+        this.bsonObject = bsonObject;
+        setParentScope(mongoScope);
+        setPrototype(ScriptableObject.getObjectPrototype(mongoScope));
+    }
+
+    /**
+     * @return true if every field has been decoded
+     */
+    public boolean isMaterialized() {
+        return bsonObject == null;
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        if ((bsonObject != null) && !super.has(name, start)
+                && getBSONKeys().contains(name))
+            decodeField(name);
+        return super.get(name, start);
+    }
+
+    @Override
+    public Object get(int index, Scriptable start) {
+        String name = String.valueOf(index);
+        if ((bsonObject != null) && !super.has(index, start)
+                && getBSONKeys().contains(name))
+            decodeField(name);
+        return super.get(index, start);
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        if ((bsonObject != null) && getBSONKeys().contains(name))
+            return true;
+        return super.has(name, start);
+    }
+
+    @Override
+    public boolean has(int index, Scriptable start) {
+        if ((bsonObject != null)
+                && getBSONKeys().contains(String.valueOf(index)))
+            return true;
+        return super.has(index, start);
+    }
+
+    @Override
+    public void put(String name, Scriptable start, Object value) {
+        materialize();
+        super.put(name, start, value);
+    }
+
+    @Override
+    public void put(int index, Scriptable start, Object value) {
+        materialize();
+        super.put(index, start, value);
+    }
+
+    @Override
+    public void delete(String name) {
+        materialize();
+        super.delete(name);
+    }
+
+    @Override
+    public void delete(int index) {
+        materialize();
+        super.delete(index);
+    }
+
+    @Override
+    public Object[] getIds() {
+        materialize();
+        return super.getIds();
+    }
+
+    @Override
+    public Object[] getAllIds() {
+        materialize();
+        return super.getAllIds();
+    }
+
+    @Override
+    protected ScriptableObject getOwnPropertyDescriptor(Context cx, Object id) {
+        materialize();
+        return super.getOwnPropertyDescriptor(cx, id);
+    }
+
+    /**
+     * Decodes every field that hasn't been read yet, keeping the order of the
+     * fields within the document.
+     */
+    public void materialize() {
+        if (bsonObject == null)
+            return;
+        // decoding the whole document in one pass is much cheaper than
+        // looking the remaining fields up one by one
+        Scriptable decoded = decodeDocument();
+        Object[] ids = decoded.getIds();
+        Object[] values = new Object[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            String name = String.valueOf(ids[i]);
+            if (hasOwn(name)) {
+                values[i] = getOwn(name);
+                deleteOwn(name);
+            } else if (ids[i] instanceof Integer) {
+                values[i] = decoded.get((Integer) ids[i], decoded);
+            } else {
+                values[i] = decoded.get(name, decoded);
+            }
+        }
+        bsonObject = null;
+        bsonKeys = null;
+        for (int i = 0; i < ids.length; i++)
+            putOwn(String.valueOf(ids[i]), values[i]);
+    }
+
+    private Scriptable decodeDocument() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                bsonObject.getBSONSize());
+        try {
+            bsonObject.pipe(bytes);
+        } catch (IOException e) {
+            throw new MongoException("IOException when decoding a document.",
+                    e);
+        }
+        return ((ScriptableDBObject) new HornOfMongoJSDecoder(mongoScope)
+                .decode(bytes.toByteArray(), (DBCollection) null))
+                .getScriptable();
+    }
+
+    private Set<String> getBSONKeys() {
+        if (bsonKeys == null)
+            bsonKeys = bsonObject.keySet();
+        return bsonKeys;
+    }
+
+    private void decodeField(String name) {
+        Object value = bsonObject.get(name);
+        Object jsValue = null;
+        if ((value instanceof LazyBSONObject) && !(value instanceof List)
+                && !BSONizer.hasRegisteredBSONConverters())
+            jsValue = new LazyBSONJSObject(mongoScope, (LazyBSONObject) value);
+        else
+            jsValue = BSONizer.convertBSONtoJS(mongoScope, value);
+        putOwn(name, jsValue);
+    }
+
+    /*
+     * field names such as "0" are stored by Rhino as indexes
+     */
+
+    private boolean hasOwn(String name) {
+        int index = ScriptableDBObject.toIndex(name);
+        return (index >= 0) ? super.has(index, this) : super.has(name, this);
+    }
+
+    private Object getOwn(String name) {
+        int index = ScriptableDBObject.toIndex(name);
+        return (index >= 0) ? super.get(index, this) : super.get(name, this);
+    }
+
+    private void putOwn(String name, Object value) {
+        int index = ScriptableDBObject.toIndex(name);
+        if (index >= 0)
+            super.put(index, this, value);
+        else
+            super.put(name, this, value);
+    }
+
+    private void deleteOwn(String name) {
+        int index = ScriptableDBObject.toIndex(name);
+        if (index >= 0)
+            super.delete(index);
+        else
+            super.delete(name);
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.DBObject;
+
+/**
+ * {@link DBObject} view of a JS object, handed to the mongo java driver which
+ * only deals in {@link DBObject} instances. Objects decoded by
+ * {@link HornOfMongoJSDecoder} are unwrapped through {@link #getScriptable()}
+ * instead of being converted, objects encoded by {@link HornOfMongoJSEncoder}
+ * are read as is.
+ * 
+ * Values put by the driver (ex. a generated _id) are converted to their JS
+ * counterparts when the object belongs to a {@link MongoScope}, unless the
+ * view is read-only: objects handed to the driver for writing keep such values
+ * apart so that the JS object of the caller is left as is.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class ScriptableDBObject implements DBObject {
+
+    private final Scriptable scriptable;
+
+    /**
+     * Values put on a read-only view, null if puts go to the JS object.
+     */
+    private final Map<String, Object> putFields;
+
+    private boolean partialObject = false;
+
+    public ScriptableDBObject(Scriptable scriptable) {
+        this(scriptable, false);
+    }
+
+    /**
+     * @param scriptable
+     * @param readOnly
+     *            true to keep the values put on this view (ex. by the driver
+     *            while encoding) apart from the given JS object, which is then
+     *            only read
+     */
+    public ScriptableDBObject(Scriptable scriptable, boolean readOnly) {
+        this.scriptable = scriptable;
+        this.putFields = readOnly ? new LinkedHashMap<String, Object>() : null;
+    }
+
+    /**
+     * @return the wrapped JS object
+     */
+    public Scriptable getScriptable() {
+        return scriptable;
+    }
+
+    /**
+     * @return the values put on this view apart from the JS object, empty
+     *         unless the view is read-only
+     */
+    public Map<String, Object> getPutFields() {
+        if (putFields == null)
+            return Collections.emptyMap();
+        return Collections.unmodifiableMap(putFields);
+    }
+
+    @Override
+    public void markAsPartialObject() {
+        partialObject = true;
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return partialObject;
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        Object previous = get(key);
+        if (putFields != null) {
+            putFields.put(key, v);
+            return previous;
+        }
+        Object value = v;
+        Scriptable topScope = ScriptableObject.getTopLevelScope(scriptable);
+        if (topScope instanceof MongoScope)
+            value = BSONizer.convertBSONtoJS((MongoScope) topScope, v);
+        int index = toIndex(key);
+        if (index >= 0)
+            ScriptableObject.putProperty(scriptable, index, value);
+        else
+            ScriptableObject.putProperty(scriptable, key, value);
+        return previous;
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        for (String key : o.keySet())
+            put(key, o.get(key));
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void putAll(Map m) {
+        for (Object entry : m.entrySet())
+            put(String.valueOf(((Map.Entry) entry).getKey()),
+                    ((Map.Entry) entry).getValue());
+    }
+
+    @Override
+    public Object get(String key) {
+        if ((putFields != null) && putFields.containsKey(key))
+            return putFields.get(key);
+        int index = toIndex(key);
+        Object value = (index >= 0) ? ScriptableObject.getProperty(
+                scriptable, index) : ScriptableObject.getProperty(scriptable,
+                key);
+        if (value == Scriptable.NOT_FOUND)
+            return null;
+        else if (value instanceof Wrapper)
+            return ((Wrapper) value).unwrap();
+        return value;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Map toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String key : keySet())
+            map.put(key, get(key));
+        return map;
+    }
+
+    @Override
+    public Object removeField(String key) {
+        Object previous = get(key);
+        if (putFields != null) {
+            // the JS object of a read-only view is left as is
+            putFields.remove(key);
+            return previous;
+        }
+        int index = toIndex(key);
+        if (index >= 0)
+            ScriptableObject.deleteProperty(scriptable, index);
+        else
+            ScriptableObject.deleteProperty(scriptable, key);
+        return previous;
+    }
+
+    @Deprecated
+    @Override
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        if ((putFields != null) && putFields.containsKey(s))
+            return true;
+        int index = toIndex(s);
+        if (index >= 0)
+            return ScriptableObject.hasProperty(scriptable, index);
+        return ScriptableObject.hasProperty(scriptable, s);
+    }
+
+    /**
+     * Keys such as "0" are stored by Rhino as indexes rather than names.
+     * 
+     * @param key
+     * @return the index the given key stands for, -1 if it is a name
+     */
+    public static int toIndex(String key) {
+        int length = key.length();
+        if ((length == 0) || (length > 9)
+                || ((length > 1) && (key.charAt(0) == '0')))
+            return -1;
+        int index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if ((c < '0') || (c > '9'))
+                return -1;
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Object id : scriptable.getIds())
+            keys.add(String.valueOf(id));
+        if (putFields != null)
+            keys.addAll(putFields.keySet());
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptableDBObject" + keySet();
+    }
+
+}
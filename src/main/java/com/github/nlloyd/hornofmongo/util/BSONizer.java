@@ -24,7 +24,6 @@ package com.github.nlloyd.hornofmongo.util;
 import com.github.nlloyd.hornofmongo.MongoRuntime;
 import com.github.nlloyd.hornofmongo.MongoScope;
 import com.github.nlloyd.hornofmongo.action.MongoAction;
-import com.github.nlloyd.hornofmongo.action.NewInstanceAction;
 import com.github.nlloyd.hornofmongo.adaptor.BinData;
 import com.github.nlloyd.hornofmongo.adaptor.DBRef;
 import com.github.nlloyd.hornofmongo.adaptor.MaxKey;
@@ -37,8 +36,6 @@ import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
 import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.Bytes;
-import org.apache.commons.lang3.time.DateFormatUtils;
-import org.apache.commons.lang3.time.DateUtils;
 import org.bson.BSON;
 import org.bson.BSONObject;
 import org.bson.types.BSONTimestamp;
@@ -56,13 +53,20 @@ import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.regexp.NativeRegExp;
+import org.mozilla.javascript.typedarrays.NativeFloat32Array;
+import org.mozilla.javascript.typedarrays.NativeFloat64Array;
+import org.mozilla.javascript.typedarrays.NativeTypedArrayView;
+import org.mozilla.javascript.typedarrays.NativeUint32Array;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 //GC: added 17/11/15
@@ -73,204 +77,933 @@ import java.util.regex.Pattern;
  */
 public class BSONizer {
 
+    /**
+     * Used for values that need no conversion.
+     */
+    private static final JSToBSONConverter JS_IDENTITY_CONVERTER = new JSToBSONConverter() {
+        @Override
+        public Object convert(Object jsObject, boolean isJsObj,
+                String dateFormat) {
+            return jsObject;
+        }
+    };
+
+    /**
+     * Used for values that need no conversion.
+     */
+    private static final BSONToJSConverter BSON_IDENTITY_CONVERTER = new BSONToJSConverter() {
+        @Override
+        public Object convert(Context context, MongoScope mongoScope,
+                Object bsonObject) {
+            return bsonObject;
+        }
+    };
+
+    private static final ConverterTable<JSToBSONConverter> JS_CONVERTERS = new ConverterTable<JSToBSONConverter>(
+            JS_IDENTITY_CONVERTER);
+
+    private static final ConverterTable<BSONToJSConverter> BSON_CONVERTERS = new ConverterTable<BSONToJSConverter>(
+            BSON_IDENTITY_CONVERTER);
+
+    /**
+     * Default maximum nesting depth of converted documents and arrays.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 1000;
+
+    /**
+     * Default maximum number of values converted at once, more than any valid
+     * BSON document (16MB) can hold.
+     */
+    public static final int DEFAULT_MAX_ELEMENTS = 16 * 1024 * 1024;
+
+    private static volatile int maxDepth = DEFAULT_MAX_DEPTH;
+
+    private static volatile int maxElements = DEFAULT_MAX_ELEMENTS;
+
+    /**
+     * Converts JS objects and arrays, walking the whole graph with an explicit
+     * stack (see {@link #convertJSDocument(Object, boolean, String)}).
+     */
+    private static final JSToBSONConverter JS_DOCUMENT_CONVERTER = new JSToBSONConverter() {
+        @Override
+        public Object convert(Object jsObject, boolean isJsObj,
+                String dateFormat) {
+            return convertJSDocument(jsObject, isJsObj, dateFormat);
+        }
+    };
+
+    /**
+     * Converts BSON documents and lists, walking the whole graph with an
+     * explicit stack (see
+     * {@link #convertBSONDocument(Context, MongoScope, Object)}).
+     */
+    private static final BSONToJSConverter BSON_DOCUMENT_CONVERTER = new BSONToJSConverter() {
+        @Override
+        public Object convert(Context context, MongoScope mongoScope,
+                Object bsonObject) {
+            return convertBSONDocument(context, mongoScope, bsonObject);
+        }
+    };
+
+    static {
+        JS_CONVERTERS.addBuiltIn(NativeArray.class, JS_DOCUMENT_CONVERTER);
+        JS_CONVERTERS.addBuiltIn(NativeRegExp.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                Object source = ScriptableObject.getProperty(
+                        (Scriptable) jsObject, "source");
+                String fullRegex = (String) Context.jsToJava(jsObject,
+                        String.class);
+                String options = fullRegex.substring(fullRegex
+                        .lastIndexOf("/") + 1);
+
+                return Pattern.compile(source.toString(),
+                        Bytes.regexFlags(options));
+            }
+        });
+        JS_CONVERTERS.addBuiltIn(NativeObject.class, JS_DOCUMENT_CONVERTER);
+        JS_CONVERTERS.addBuiltIn(ScriptableMongoObject.class,
+                new JSToBSONConverter() {
+                    @Override
+                    public Object convert(Object jsObject, boolean isJsObj,
+                            String dateFormat) {
+                        return convertScriptableMongoToBSON(
+                                (ScriptableMongoObject) jsObject, isJsObj,
+                                dateFormat);
+                    }
+                });
+        JS_CONVERTERS.addBuiltIn(BaseFunction.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                BaseFunction funcObject = (BaseFunction) jsObject;
+                Object classPrototype = ScriptableObject.getClassPrototype(
+                        funcObject, funcObject.getFunctionName());
+                if ((classPrototype instanceof MinKey)
+                        || (classPrototype instanceof MaxKey)) {
+                    // this is a special case handler for instances where
+                    // MinKey or MaxKey are provided without explicit
+                    // constructor calls
+                    // index_check3.js does this
+                    return convertScriptableMongoToBSON(
+                            (ScriptableMongoObject) classPrototype, isJsObj,
+                            dateFormat);
+                } else {
+                    // comes from eval calls
+                    String decompiledCode = (String) MongoRuntime
+                            .call(new JSDecompileAction(funcObject));
+                    return new Code(decompiledCode);
+                }
+            }
+        });
+        JS_CONVERTERS.addBuiltIn(NativeTypedArrayView.class,
+                new JSToBSONConverter() {
+                    @Override
+                    public Object convert(Object jsObject, boolean isJsObj,
+                            String dateFormat) {
+                        return convertTypedArray((NativeTypedArrayView<?>) jsObject);
+                    }
+                });
+        JS_CONVERTERS.addBuiltIn(ScriptableObject.class,
+                new JSToBSONConverter() {
+                    @Override
+                    public Object convert(Object jsObject, boolean isJsObj,
+                            String dateFormat) {
+                        // we found a ScriptableObject that isn't any of the
+                        // concrete ScriptableObjects above...
+                        String jsClassName = ((ScriptableObject) jsObject)
+                                .getClassName();
+                        if ("Date".equals(jsClassName)) {
+                            Date dt = (Date) Context.jsToJava(jsObject,
+                                    Date.class);
+                            //GC: 18/11/15 use dateFormat parameter to format date fields
+                            if (dateFormat != null && dateFormat.length() > 0)
+                                return ISODateUtils.formatUTC(dt, dateFormat);
+                            return dt;
+                        } else {
+                            Context.throwAsScriptRuntimeEx(new MongoScopeException(
+                                    "bsonizer couldnt convert js class: "
+                                            + jsClassName));
+                            return jsObject;
+                        }
+                    }
+                });
+        JS_CONVERTERS.addBuiltIn(ConsString.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                return jsObject.toString();
+            }
+        });
+        // this may seem strange, but JavaScript only knows about the number
+        // type which means in the official client we need to pass a Double
+        // this applies to Long and Integer values
+        JS_CONVERTERS.addBuiltIn(Integer.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                return Double.valueOf((Integer) jsObject);
+            }
+        });
+        JS_CONVERTERS.addBuiltIn(Long.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                return Double.valueOf((Long) jsObject);
+            }
+        });
+
+        BSON_CONVERTERS.addBuiltIn(List.class, BSON_DOCUMENT_CONVERTER);
+        BSON_CONVERTERS.addBuiltIn(BSONObject.class, BSON_DOCUMENT_CONVERTER);
+        BSON_CONVERTERS.addBuiltIn(Symbol.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return ((Symbol) bsonObject).getSymbol();
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(Date.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return context.newObject(mongoScope, "Date",
+                        new Object[] { ((Date) bsonObject).getTime() });
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(Pattern.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                Pattern regex = (Pattern) bsonObject;
+                String source = regex.pattern();
+                String options = Bytes.regexFlags(regex.flags());
+                return context.newObject(mongoScope, "RegExp", new Object[] {
+                        source, options });
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(org.bson.types.ObjectId.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        return ObjectId.newInstance(mongoScope,
+                                (org.bson.types.ObjectId) bsonObject);
+                    }
+                });
+        BSON_CONVERTERS.addBuiltIn(org.bson.types.MinKey.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        return context.newObject(mongoScope, "MinKey");
+                    }
+                });
+        BSON_CONVERTERS.addBuiltIn(org.bson.types.MaxKey.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        return context.newObject(mongoScope, "MaxKey");
+                    }
+                });
+        BSON_CONVERTERS.addBuiltIn(com.mongodb.DBRef.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        com.mongodb.DBRef dbRef = (com.mongodb.DBRef) bsonObject;
+                        Object id = convertBSONtoJS(context, mongoScope,
+                                dbRef.getId());
+                        return context.newObject(mongoScope, "DBRef",
+                                new Object[] { dbRef.getCollectionName(), id });
+                    }
+                });
+        BSON_CONVERTERS.addBuiltIn(BSONTimestamp.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        BSONTimestamp bsonTstamp = (BSONTimestamp) bsonObject;
+                        return Timestamp.newInstance(mongoScope,
+                                bsonTstamp.getTime(), bsonTstamp.getInc());
+                    }
+                });
+        BSON_CONVERTERS.addBuiltIn(Long.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return NumberLong.newInstance(mongoScope, (Long) bsonObject);
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(Integer.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return Double.valueOf((Integer) bsonObject);
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(Code.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return ((Code) bsonObject).getCode();
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(byte[].class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return BinData.newInstance(mongoScope, 0, (byte[]) bsonObject);
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(Binary.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                // user defined subtypes (0x80-0xff) are negative bytes
+                return BinData.newInstance(mongoScope,
+                        ((Binary) bsonObject).getType() & 0xFF,
+                        ((Binary) bsonObject).getData());
+            }
+        });
+        BSON_CONVERTERS.addBuiltIn(UUID.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                UUID uuid = (UUID) bsonObject;
+                ByteBuffer dataBuffer = ByteBuffer.allocate(16);
+                // mongodb wire protocol is little endian
+                dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                dataBuffer.putLong(uuid.getMostSignificantBits());
+                dataBuffer.putLong(uuid.getLeastSignificantBits());
+                return BinData.newInstance(mongoScope, BSON.B_UUID,
+                        dataBuffer.array());
+            }
+        });
+    }
+
     public static Object convertJStoBSON(Object jsObject, boolean isJsObj) {
         return convertJStoBSON(jsObject, isJsObj, null);
     }
 
     public static Object convertJStoBSON(Object jsObject, boolean isJsObj, String dateFormat) {
-        Object bsonObject = null;
+        if (jsObject == null)
+            return null;
+        return JS_CONVERTERS.get(jsObject.getClass()).convert(jsObject,
+                isJsObj, dateFormat);
+    }
+
+    /**
+     * Same as {@link #convertJStoBSON(Object, boolean)} for documents written
+     * to the given namespace, an array is converted as a batch of documents.
+     * Documents of the hot shape of the namespace are converted by its
+     * {@link ShapeCodec}, see {@link ShapeCache}.
+     * 
+     * @param mongoScope
+     * @param namespace
+     * @param jsObject
+     * @param isJsObj
+     * @return
+     */
+    public static Object convertJStoBSON(MongoScope mongoScope,
+            String namespace, Object jsObject, boolean isJsObj) {
+        if ((mongoScope == null) || (namespace == null) || (jsObject == null)
+                || (JS_CONVERTERS.get(jsObject.getClass()) != JS_DOCUMENT_CONVERTER))
+            return convertJStoBSON(jsObject, isJsObj);
         if (jsObject instanceof NativeArray) {
             NativeArray jsArray = (NativeArray) jsObject;
-            List<Object> bsonArray = new ArrayList<Object>(Long.valueOf(
-                    jsArray.getLength()).intValue());
-            for (Object jsEntry : jsArray) {
-                bsonArray.add(convertJStoBSON(jsEntry, isJsObj, dateFormat));
-            }
-            bsonObject = bsonArray;
-        } else if (jsObject instanceof NativeRegExp) {
-            Object source = ScriptableObject.getProperty((Scriptable) jsObject,
-                    "source");
-            String fullRegex = (String) Context
-                    .jsToJava(jsObject, String.class);
-            String options = fullRegex
-                    .substring(fullRegex.lastIndexOf("/") + 1);
-
-            bsonObject = Pattern.compile(source.toString(),
-                    Bytes.regexFlags(options));
-            ;
-        } else if (jsObject instanceof NativeObject) {
-            BasicDBObject bson = new BasicDBObject();
-            bsonObject = bson;
-
-            NativeObject rawJsObject = (NativeObject) jsObject;
-            for (Object key : rawJsObject.keySet()) 
-            {
-                Object value = extractJSProperty(rawJsObject, key);
+            int length = Long.valueOf(jsArray.getLength()).intValue();
+            List<Object> bsonArray = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++)
+                bsonArray.add(convertJStoBSON(mongoScope, namespace,
+                        getArrayElement(jsArray, i), isJsObj));
+            return bsonArray;
+        }
+        ShapeCache shapeCache = mongoScope.getShapeCache();
+        ShapeCodec codec = shapeCache.codecFor(namespace);
+        if (codec != null) {
+            BasicDBObject bsonObject = codec.encode((NativeObject) jsObject,
+                    isJsObj, null);
+            shapeCache.recordCodec(bsonObject != null);
+            if (bsonObject != null)
+                return bsonObject;
+        }
+        Object bsonObject = convertJStoBSON(jsObject, isJsObj);
+        if (bsonObject instanceof BasicDBObject)
+            shapeCache.observe(namespace, ((BasicDBObject) bsonObject)
+                    .keySet().iterator());
+        return bsonObject;
+    }
+
+    /**
+     * @return the maximum nesting depth of converted documents and arrays
+     */
+    public static int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Conversions of documents and arrays nested deeper than the given depth
+     * (including cyclic JS objects) fail with a {@link MongoScopeException}.
+     * 
+     * @param maxDepth
+     */
+    public static void setMaxDepth(int maxDepth) {
+        if (maxDepth < 1)
+            throw new IllegalArgumentException("maxDepth must be positive: "
+                    + maxDepth);
+        BSONizer.maxDepth = maxDepth;
+    }
+
+    /**
+     * @return the maximum number of values converted at once
+     */
+    public static int getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Conversions of documents and arrays holding more values than the given
+     * number, nested ones included, fail with a {@link MongoScopeException}.
+     * 
+     * @param maxElements
+     */
+    public static void setMaxElements(int maxElements) {
+        if (maxElements < 1)
+            throw new IllegalArgumentException(
+                    "maxElements must be positive: " + maxElements);
+        BSONizer.maxElements = maxElements;
+    }
+
+    /**
+     * Registers a converter for JS values of the given class (and its
+     * subclasses), taking precedence over the built-in conversions and over
+     * converters registered before. While JS converters are registered
+     * {@link com.github.nlloyd.hornofmongo.bson.HornOfMongoJSEncoder} converts
+     * documents through {@link #convertJStoBSON(Object, boolean)} before
+     * writing them.
+     * 
+     * @param jsClass
+     * @param converter
+     */
+    public static void registerJSConverter(Class<?> jsClass,
+            JSToBSONConverter converter) {
+        JS_CONVERTERS.register(jsClass, converter);
+    }
+
+    /**
+     * @param jsClass
+     * @return true if a converter was registered for the given class
+     */
+    public static boolean unregisterJSConverter(Class<?> jsClass) {
+        return JS_CONVERTERS.unregister(jsClass);
+    }
 
+    /**
+     * Registers a converter for BSON values of the given class (and its
+     * subclasses), taking precedence over the built-in conversions and over
+     * converters registered before. While BSON converters are registered
+     * the direct and lazy decoders (see
+     * {@link MongoScope#setDirectBSONDecoding(boolean)} and
+     * {@link MongoScope#setLazyBSONDecoding(boolean)}) decode documents
+     * into {@link com.mongodb.DBObject} instances converted by
+     * {@link #convertBSONtoJS(MongoScope, String, Object)}.
+     * 
+     * @param bsonClass
+     * @param converter
+     */
+    public static void registerBSONConverter(Class<?> bsonClass,
+            BSONToJSConverter converter) {
+        BSON_CONVERTERS.register(bsonClass, converter);
+    }
+
+    /**
+     * @param bsonClass
+     * @return true if a converter was registered for the given class
+     */
+    public static boolean unregisterBSONConverter(Class<?> bsonClass) {
+        return BSON_CONVERTERS.unregister(bsonClass);
+    }
+
+    /**
+     * @return true if at least one JS converter is registered
+     */
+    public static boolean hasRegisteredJSConverters() {
+        return JS_CONVERTERS.hasRegistered();
+    }
+
+    /**
+     * @return true if at least one BSON converter is registered
+     */
+    public static boolean hasRegisteredBSONConverters() {
+        return BSON_CONVERTERS.hasRegistered();
+    }
+
+    /**
+     * Converts the given JS object or array and everything it holds without
+     * recursing, nested objects and arrays are pushed on an explicit stack.
+     * Other values are converted through their converters.
+     * 
+     * @param jsObject
+     * @param isJsObj
+     * @param dateFormat
+     * @return
+     */
+    private static Object convertJSDocument(Object jsObject, boolean isJsObj,
+            String dateFormat) {
+        int depthLimit = maxDepth;
+        int elementLimit = maxElements;
+        int depth = 1;
+        int elements = 1;
+        JSFrame frame = new JSFrame(jsObject, null, null);
+        while (true) {
+            if (frame.jsArray != null)
+                elements = convertJSArrayValues(frame, isJsObj, dateFormat,
+                        elements, elementLimit);
+            if (frame.hasNext()) {
+                Object key = frame.nextKey();
+                Object value = frame.valueOf(key);
+                if (++elements > elementLimit)
+                    tooLarge("elements", elementLimit);
                 //GC: 17/11/15 allow for UTC $date object
-                if(key.equals("$date"))
-                {
-                    try
-                    {
-                        bsonObject = DateUtils.parseDate(value.toString(), 
-                            new String[] {"yyyy-MM-dd'T'HH:mm:ss'Z'", "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"});
-                    }
-                    catch(java.text.ParseException e)
-                    {
-                        bson.put(key.toString(), convertJStoBSON(value, isJsObj, dateFormat));
+                if ((frame.bsonDocument != null) && "$date".equals(key)) {
+                    Date date = parseSpecialDate(value);
+                    if (date != null) {
+                        frame.specialDate = date;
+                        continue;
                     }
                 }
-                else
-                {
-                    bson.put(key.toString(), convertJStoBSON(value, isJsObj, dateFormat));
+                JSToBSONConverter converter = (value == null) ? null
+                        : JS_CONVERTERS.get(value.getClass());
+                if (converter == JS_DOCUMENT_CONVERTER) {
+                    if (++depth > depthLimit)
+                        tooLarge("nesting depth", depthLimit);
+                    frame = new JSFrame(value, frame, key);
+                } else {
+                    frame.add(key, (converter == null) ? null : converter
+                            .convert(value, isJsObj, dateFormat));
                 }
-            }
-        } else if (jsObject instanceof ScriptableMongoObject) {
-            bsonObject = convertScriptableMongoToBSON(
-                    (ScriptableMongoObject) jsObject, isJsObj, dateFormat);
-        } else if (jsObject instanceof BaseFunction) {
-            BaseFunction funcObject = (BaseFunction) jsObject;
-            Object classPrototype = ScriptableObject.getClassPrototype(
-                    funcObject, funcObject.getFunctionName());
-            if ((classPrototype instanceof MinKey)
-                    || (classPrototype instanceof MaxKey)) {
-                // this is a special case handler for instances where MinKey or
-                // MaxKey are provided without explicit constructor calls
-                // index_check3.js does this
-                bsonObject = convertScriptableMongoToBSON(
-                        (ScriptableMongoObject) classPrototype, isJsObj, dateFormat);
+            } else if (frame.parent == null) {
+                return frame.result();
             } else {
-                // comes from eval calls
-                String decompiledCode = (String) MongoRuntime
-                        .call(new JSDecompileAction(funcObject));
-                bsonObject = new Code(decompiledCode);
+                frame.parent.add(frame.parentKey, frame.result());
+                frame = frame.parent;
+                depth--;
             }
-        } else if (jsObject instanceof ScriptableObject) {
-            // we found a ScriptableObject that isn't any of the concrete
-            // ScriptableObjects above...
-            String jsClassName = ((ScriptableObject) jsObject).getClassName();
-            if ("Date".equals(jsClassName)) {
-                Date dt = (Date)Context.jsToJava(jsObject, Date.class);
-                bsonObject = dt;
-                //GC: 18/11/15 use dateFormat parameter to format date fields
-                if(dateFormat != null && dateFormat.length() > 0)
-                    bsonObject = DateFormatUtils.formatUTC(dt, dateFormat);
+        }
+    }
+
+    /**
+     * Converts the given BSON document or list and everything it holds without
+     * recursing, nested documents and lists are pushed on an explicit stack.
+     * Other values are converted through their converters.
+     * 
+     * @param context
+     * @param mongoScope
+     * @param bsonObject
+     * @return
+     */
+    private static Object convertBSONDocument(Context context,
+            MongoScope mongoScope, Object bsonObject) {
+        return convertBSONDocument(context, mongoScope, bsonObject, null);
+    }
+
+    /**
+     * Same as {@link #convertBSONDocument(Context, MongoScope, Object)}, a
+     * document read from the given namespace is counted by the
+     * {@link ShapeCache} of the scope under the shape reached while
+     * converting it.
+     * 
+     * @param context
+     * @param mongoScope
+     * @param bsonObject
+     * @param namespace
+     *            the namespace the document was read from, may be null
+     * @return
+     */
+    private static Object convertBSONDocument(Context context,
+            MongoScope mongoScope, Object bsonObject, String namespace) {
+        int depthLimit = maxDepth;
+        int elementLimit = maxElements;
+        int depth = 1;
+        int elements = 1;
+        boolean typedArrays = (mongoScope != null)
+                && mongoScope.isTypedArrayDecoding();
+        if (typedArrays && (bsonObject instanceof List)) {
+            Scriptable typedArray = toTypedArray(context, mongoScope,
+                    (List<?>) bsonObject);
+            if (typedArray != null)
+                return typedArray;
+        }
+        BSONFrame frame = new BSONFrame(context, mongoScope, bsonObject, null,
+                null);
+        while (true) {
+            if (frame.bsonList != null)
+                elements = convertBSONListValues(context, mongoScope, frame,
+                        elements, elementLimit);
+            if (frame.hasNext()) {
+                Object key = frame.nextKey();
+                Object value = frame.valueOf(key);
+                if (++elements > elementLimit)
+                    tooLarge("elements", elementLimit);
+                BSONToJSConverter converter = (value == null) ? null
+                        : BSON_CONVERTERS.get(value.getClass());
+                Scriptable typedArray = null;
+                if (typedArrays && (value instanceof List))
+                    typedArray = toTypedArray(context, mongoScope,
+                            (List<?>) value);
+                if (typedArray != null) {
+                    elements += ((List<?>) value).size();
+                    if (elements > elementLimit)
+                        tooLarge("elements", elementLimit);
+                    frame.add(context, key, typedArray);
+                } else if (converter == BSON_DOCUMENT_CONVERTER) {
+                    if (++depth > depthLimit)
+                        tooLarge("nesting depth", depthLimit);
+                    frame = new BSONFrame(context, mongoScope, value, frame,
+                            key);
+                } else {
+                    frame.add(context, key, (converter == null) ? null
+                            : converter.convert(context, mongoScope, value));
+                }
+            } else if (frame.parent == null) {
+                if ((namespace != null) && (frame.shapes != null))
+                    frame.shapes.observe(namespace, frame.shape);
+                return frame.result(context, mongoScope);
             } else {
-                Context.throwAsScriptRuntimeEx(new MongoScopeException(
-                        "bsonizer couldnt convert js class: " + jsClassName));
-                bsonObject = jsObject;
+                frame.parent.add(context, frame.parentKey,
+                        frame.result(context, mongoScope));
+                frame = frame.parent;
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Dense path for the values of a JS array: reads them by index and keeps
+     * the converter of the last value class, arrays usually hold values of a
+     * single class. Stops at the first nested object or array, which is left
+     * to {@link #convertJSDocument(Object, boolean, String)}.
+     * 
+     * @return the number of values converted so far
+     */
+    private static int convertJSArrayValues(JSFrame frame, boolean isJsObj,
+            String dateFormat, int elements, int elementLimit) {
+        NativeArray jsArray = frame.jsArray;
+        List<Object> bsonArray = frame.bsonArray;
+        Class<?> lastClass = null;
+        JSToBSONConverter lastConverter = null;
+        while (frame.index < frame.length) {
+            Object value = getArrayElement(jsArray, frame.index);
+            Object bsonValue = null;
+            if (value != null) {
+                if (value.getClass() != lastClass) {
+                    lastClass = value.getClass();
+                    lastConverter = JS_CONVERTERS.get(lastClass);
+                }
+                if (lastConverter == JS_DOCUMENT_CONVERTER)
+                    break;
+                bsonValue = (lastConverter == JS_IDENTITY_CONVERTER) ? value
+                        : lastConverter.convert(value, isJsObj, dateFormat);
+            }
+            if (++elements > elementLimit)
+                tooLarge("elements", elementLimit);
+            bsonArray.add(bsonValue);
+            frame.index++;
+        }
+        return elements;
+    }
+
+    /**
+     * Same as {@link NativeArray#get(int)} but reads the element straight from
+     * the dense backing array if there is one.
+     * 
+     * @param jsArray
+     * @param index
+     * @return the element, null for missing or undefined elements
+     */
+    private static Object getArrayElement(NativeArray jsArray, int index) {
+        Object value = jsArray.get(index, jsArray);
+        if (value == Scriptable.NOT_FOUND) {
+            // may be inherited from the prototype
+            return jsArray.get(index);
+        } else if (value == Undefined.instance) {
+            return null;
+        }
+        return unwrap(value);
+    }
+
+    /**
+     * @param value
+     * @return the wrapped value if the given value is a {@link Wrapper}
+     */
+    private static Object unwrap(Object value) {
+        // a failing instanceof check against an interface is comparatively
+        // slow, rule out the most common (final) classes first
+        if ((value instanceof String) || (value instanceof Double)
+                || (value instanceof Boolean))
+            return value;
+        return (value instanceof Wrapper) ? ((Wrapper) value).unwrap() : value;
+    }
+
+    /**
+     * Dense path for the values of a random access BSON list, see
+     * {@link #convertJSArrayValues(JSFrame, boolean, String, int, int)}.
+     * 
+     * @return the number of values converted so far
+     */
+    private static int convertBSONListValues(Context context,
+            MongoScope mongoScope, BSONFrame frame, int elements,
+            int elementLimit) {
+        List<?> bsonList = frame.bsonList;
+        Object[] jsElements = frame.elements;
+        Class<?> lastClass = null;
+        BSONToJSConverter lastConverter = null;
+        while (frame.index < jsElements.length) {
+            Object value = bsonList.get(frame.index);
+            Object jsValue = null;
+            if (value != null) {
+                if (value.getClass() != lastClass) {
+                    lastClass = value.getClass();
+                    lastConverter = BSON_CONVERTERS.get(lastClass);
+                }
+                if (lastConverter == BSON_DOCUMENT_CONVERTER)
+                    break;
+                jsValue = (lastConverter == BSON_IDENTITY_CONVERTER) ? value
+                        : lastConverter.convert(context, mongoScope, value);
             }
-        } else if (jsObject instanceof ConsString) {
-            bsonObject = jsObject.toString();
-        } else if (jsObject instanceof Undefined) {
-            bsonObject = jsObject;
-        } else if (jsObject instanceof Integer) {
-            // this may seem strange, but JavaScript only knows about the number
-            // type
-            // which means in the official client we need to pass a Double
-            // this applies to Long and Integer values
-            bsonObject = Double.valueOf((Integer) jsObject);
-        } else if (jsObject instanceof Long) {
-            bsonObject = Double.valueOf((Long) jsObject);
+            if (++elements > elementLimit)
+                tooLarge("elements", elementLimit);
+            jsElements[frame.index++] = jsValue;
+        }
+        return elements;
+    }
+
+    /**
+     * Decodes a BSON list holding only doubles into a Float64Array, or one
+     * holding only int32 values into an Int32Array, see
+     * {@link MongoScope#isTypedArrayDecoding()}.
+     * 
+     * @param context
+     * @param mongoScope
+     * @param bsonList
+     * @return the typed array or null if the list is empty or holds values of
+     *         any other (or mixed) type
+     */
+    public static Scriptable toTypedArray(Context context,
+            MongoScope mongoScope, List<?> bsonList) {
+        int length = bsonList.size();
+        if (length == 0)
+            return null;
+        Class<?> elementClass = null;
+        for (Object value : bsonList) {
+            Class<?> valueClass = (value == null) ? null : value.getClass();
+            if ((valueClass != Double.class) && (valueClass != Integer.class))
+                return null;
+            if (elementClass == null)
+                elementClass = valueClass;
+            else if (valueClass != elementClass)
+                return null;
+        }
+        NativeTypedArrayView<?> typedArray = (NativeTypedArrayView<?>) context
+                .newObject(mongoScope,
+                        (elementClass == Double.class) ? "Float64Array"
+                                : "Int32Array",
+                        new Object[] { Integer.valueOf(length) });
+        // write the values straight into the backing buffer, typed arrays
+        // are big endian in Rhino
+        ByteBuffer buffer = ByteBuffer.wrap(typedArray.getBuffer().getBuffer(),
+                typedArray.getByteOffset(), typedArray.getByteLength());
+        if (elementClass == Double.class) {
+            for (Object value : bsonList)
+                buffer.putDouble((Double) value);
         } else {
-            bsonObject = jsObject;
+            for (Object value : bsonList)
+                buffer.putInt((Integer) value);
         }
+        return typedArray;
+    }
 
-        return bsonObject;
+    /**
+     * Converts a JS typed array to a BSON array, the values of the integer
+     * typed arrays are kept as int32 values, so that an Int32Array decoded by
+     * {@link #toTypedArray(Context, MongoScope, List)} is stored back as is.
+     * 
+     * @param typedArray
+     * @return
+     */
+    private static List<Object> convertTypedArray(
+            NativeTypedArrayView<?> typedArray) {
+        boolean doubles = (typedArray instanceof NativeFloat64Array)
+                || (typedArray instanceof NativeFloat32Array)
+                || (typedArray instanceof NativeUint32Array);
+        int length = typedArray.getArrayLength();
+        List<Object> bsonArray = new ArrayList<Object>(length);
+        for (int i = 0; i < length; i++) {
+            Number value = (Number) typedArray.getArrayElement(i);
+            bsonArray.add(doubles ? (Object) Double.valueOf(value
+                    .doubleValue()) : (Object) Integer.valueOf(value
+                    .intValue()));
+        }
+        return bsonArray;
     }
 
-    @SuppressWarnings("deprecation")
+    private static void tooLarge(String what, int limit) {
+        Context.throwAsScriptRuntimeEx(new MongoScopeException(
+                "bsonizer couldnt convert document, " + what
+                        + " exceeds the limit of " + limit));
+    }
+
+    /**
+     * Parses the value of a <code>{$date: ..}</code> object, which
+     * {@link #convertJStoBSON(Object, boolean)} converts to a {@link Date}:
+     * an ISO-8601 date-time string (see {@link ISODateUtils#parseMillis(CharSequence)}),
+     * a number, a NumberLong or a <code>{$numberLong: ".."}</code> object of
+     * milliseconds since epoch.
+     * 
+     * @param value
+     * @return the parsed {@link Date} or null if the value is not a date
+     */
+    public static Date parseSpecialDate(Object value) {
+        long millis = ISODateUtils.INVALID;
+        if (value instanceof CharSequence) {
+            millis = ISODateUtils.parseMillis((CharSequence) value);
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (!Double.isNaN(number) && !Double.isInfinite(number))
+                millis = (long) number;
+        } else if (value instanceof NumberLong) {
+            millis = ((NumberLong) value).getRealLong();
+        } else if (value instanceof Scriptable) {
+            Object numberLong = ScriptableObject.getProperty(
+                    (Scriptable) value, "$numberLong");
+            if (numberLong instanceof CharSequence)
+                millis = ISODateUtils
+                        .parseEpochMillis((CharSequence) numberLong);
+        }
+        return (millis == ISODateUtils.INVALID) ? null : new Date(millis);
+    }
+
+    /**
+     * Converts the given BSON value to its JS counterpart. If a {@link Context}
+     * is already entered on the current thread the conversion runs within it,
+     * otherwise the whole conversion runs within a single
+     * {@link MongoRuntime#call(MongoAction)}.
+     * 
+     * @param mongoScope
+     * @param bsonObject
+     * @return
+     */
     public static Object convertBSONtoJS(MongoScope mongoScope,
             Object bsonObject) {
-        Object jsObject = null;
-        if (bsonObject instanceof List<?>) {
-            List<?> bsonList = (List<?>) bsonObject;
-            Scriptable jsArray = (Scriptable) MongoRuntime
-                    .call(new NewInstanceAction(mongoScope, bsonList.size()));
-
-            int index = 0;
-            for (Object bsonEntry : bsonList) {
-                ScriptableObject.putProperty(jsArray, index,
-                        convertBSONtoJS(mongoScope, bsonEntry));
-                index++;
-            }
+        Context context = Context.getCurrentContext();
+        if (context != null)
+            return convertBSONtoJS(context, mongoScope, bsonObject);
+        return MongoRuntime.call(new JSConvertBSONAction(mongoScope,
+                bsonObject));
+    }
 
-            jsObject = jsArray;
-        } else if (bsonObject instanceof BSONObject) {
-            Scriptable jsObj = (Scriptable) MongoRuntime
-                    .call(new NewInstanceAction(mongoScope));
-            BSONObject bsonObj = (BSONObject) bsonObject;
+    /**
+     * Converts the given BSON value to its JS counterpart using the given,
+     * already entered, {@link Context}. Documents and arrays are converted in
+     * one pass without entering the {@link Context} again.
+     * 
+     * @param context
+     * @param mongoScope
+     * @param bsonObject
+     * @return
+     */
+    public static Object convertBSONtoJS(Context context,
+            MongoScope mongoScope, Object bsonObject) {
+        if (bsonObject == null)
+            return null;
+        return BSON_CONVERTERS.get(bsonObject.getClass()).convert(context,
+                mongoScope, bsonObject);
+    }
+
+    /**
+     * Same as {@link #convertBSONtoJS(MongoScope, Object)} for a document read
+     * from the given namespace. Documents of the hot shape of the namespace
+     * are converted by its {@link ShapeCodec}, see {@link ShapeCache}.
+     * 
+     * @param mongoScope
+     * @param namespace
+     * @param bsonObject
+     * @return
+     */
+    public static Object convertBSONtoJS(MongoScope mongoScope,
+            String namespace, Object bsonObject) {
+        Context context = Context.getCurrentContext();
+        if (context != null)
+            return convertBSONtoJS(context, mongoScope, namespace, bsonObject);
+        return MongoRuntime.call(new JSConvertBSONAction(mongoScope,
+                namespace, bsonObject));
+    }
 
-            for (String key : bsonObj.keySet()) {
-                Object value = convertBSONtoJS(mongoScope, bsonObj.get(key));
-                MongoRuntime.call(new JSPopulatePropertyAction(jsObj, key,
-                        value));
+    /**
+     * Same as {@link #convertBSONtoJS(Context, MongoScope, Object)} for a
+     * document read from the given namespace, see
+     * {@link #convertBSONtoJS(MongoScope, String, Object)}.
+     * 
+     * @param context
+     * @param mongoScope
+     * @param namespace
+     * @param bsonObject
+     * @return
+     */
+    public static Object convertBSONtoJS(Context context,
+            MongoScope mongoScope, String namespace, Object bsonObject) {
+        if ((mongoScope == null) || (namespace == null)
+                || !(bsonObject instanceof BSONObject)
+                || (bsonObject instanceof List)
+                || (BSON_CONVERTERS.get(bsonObject.getClass()) != BSON_DOCUMENT_CONVERTER))
+            return convertBSONtoJS(context, mongoScope, bsonObject);
+        BSONObject document = (BSONObject) bsonObject;
+        ShapeCache shapeCache = mongoScope.getShapeCache();
+        ShapeCodec codec = shapeCache.codecFor(namespace);
+        if (codec != null) {
+            Scriptable jsObject = codec.decode(context, mongoScope, document);
+            shapeCache.recordCodec(jsObject != null);
+            if (jsObject != null) {
+                shapeCache.record(true);
+                return jsObject;
             }
-            jsObject = jsObj;
-        } else if (bsonObject instanceof Symbol) {
-            jsObject = ((Symbol) bsonObject).getSymbol();
-        } else if (bsonObject instanceof Date) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "Date", new Object[] { ((Date) bsonObject).getTime() }));
-        } else if (bsonObject instanceof Pattern) {
-            Pattern regex = (Pattern) bsonObject;
-            String source = regex.pattern();
-            String options = Bytes.regexFlags(regex.flags());
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "RegExp", new Object[] { source, options }));
-        } else if (bsonObject instanceof org.bson.types.ObjectId) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "ObjectId"));
-            ((ObjectId) jsObject)
-                    .setRealObjectId((org.bson.types.ObjectId) bsonObject);
-        } else if (bsonObject instanceof org.bson.types.MinKey) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "MinKey"));
-        } else if (bsonObject instanceof org.bson.types.MaxKey) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "MaxKey"));
-        } else if (bsonObject instanceof com.mongodb.DBRef) {
-            com.mongodb.DBRef dbRef = (com.mongodb.DBRef) bsonObject;
-            Object id = convertBSONtoJS(mongoScope, dbRef.getId());
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "DBRef", new Object[] { dbRef.getCollectionName(), id }));
-        } else if (bsonObject instanceof BSONTimestamp) {
-            BSONTimestamp bsonTstamp = (BSONTimestamp) bsonObject;
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "Timestamp", new Object[] { bsonTstamp.getTime(),
-                            bsonTstamp.getInc() }));
-        } else if (bsonObject instanceof Long) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "NumberLong"));
-            ((NumberLong) jsObject).setRealLong((Long) bsonObject);
-        } else if (bsonObject instanceof Integer) {
-            jsObject = Double.valueOf((Integer) bsonObject);
-        } else if (bsonObject instanceof Code) {
-            jsObject = ((Code) bsonObject).getCode();
-        } else if (bsonObject instanceof byte[]) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            ((BinData) jsObject).setValues(0, (byte[]) bsonObject);
-        } else if (bsonObject instanceof Binary) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            ((BinData) jsObject).setValues(((Binary) bsonObject).getType(),
-                    ((Binary) bsonObject).getData());
-        } else if (bsonObject instanceof UUID) {
-            jsObject = MongoRuntime.call(new NewInstanceAction(mongoScope,
-                    "BinData"));
-            UUID uuid = (UUID) bsonObject;
-            ByteBuffer dataBuffer = ByteBuffer.allocate(16);
-            // mongodb wire protocol is little endian
-            dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            dataBuffer.putLong(uuid.getMostSignificantBits());
-            dataBuffer.putLong(uuid.getLeastSignificantBits());
-            ((BinData) jsObject).setValues(BSON.B_UUID, dataBuffer.array());
-        } else {
-            jsObject = bsonObject;
         }
+        // counts the document under the shape its conversion reached
+        return convertBSONDocument(context, mongoScope, bsonObject, namespace);
+    }
+
+    /**
+     * @param jsClass
+     * @return the converter of JS values of the given class
+     */
+    static JSToBSONConverter jsConverter(Class<?> jsClass) {
+        return JS_CONVERTERS.get(jsClass);
+    }
+
+    /**
+     * @param bsonClass
+     * @return the converter of BSON values of the given class
+     */
+    static BSONToJSConverter bsonConverter(Class<?> bsonClass) {
+        return BSON_CONVERTERS.get(bsonClass);
+    }
 
-        return jsObject;
+    /**
+     * @return the version of the JS converters, changes when one is
+     *         registered or unregistered
+     */
+    static int jsConverterVersion() {
+        return JS_CONVERTERS.version();
+    }
+
+    /**
+     * @return the version of the BSON converters, changes when one is
+     *         registered or unregistered
+     */
+    static int bsonConverterVersion() {
+        return BSON_CONVERTERS.version();
     }
 
     /**
@@ -281,7 +1014,7 @@ public class BSONizer {
      * @param key
      * @return
      */
-    private static Object extractJSProperty(ScriptableObject jsObject,
+    static Object extractJSProperty(ScriptableObject jsObject,
             Object key) {
         Object value = null;
         if (key instanceof String) {
@@ -291,10 +1024,8 @@ public class BSONizer {
         }
         if (value == Scriptable.NOT_FOUND) {
             return null;
-        } else if (value instanceof Wrapper) {
-            return ((Wrapper) value).unwrap();
         } else {
-            return value;
+            return unwrap(value);
         }
     }
 
@@ -336,51 +1067,244 @@ public class BSONizer {
     }
 
     /**
-     * seconds since epoch, used for Timestamp to BSONTimestamp conversion
+     * Last generated Timestamp, seconds since epoch in the high and ordinal in
+     * the low 32 bits, used for Timestamp to BSONTimestamp conversion.
      */
-    private static int lastSecFromEpoch;
+    private static final AtomicLong lastTimestamp = new AtomicLong();
+
+    private static BSONTimestamp convertTimestampToBSONTimestamp(
+            Timestamp tstamp) {
+        int newTimeInSec = (int) tstamp.getT();
+        if (newTimeInSec != 0)
+            return new BSONTimestamp(newTimeInSec, (int) tstamp.getI());
+        long next;
+        while (true) {
+            long last = lastTimestamp.get();
+            int lastSecFromEpoch = (int) (last >>> 32);
+            int timestampIncrementer = (int) last;
+            newTimeInSec = (int) (System.currentTimeMillis() / 1000);
+            if ((newTimeInSec > lastSecFromEpoch)
+                    || (timestampIncrementer == -1)) {
+                // seconds from epoch has changed (or the ordinal is
+                // exhausted), reset the ordinal, never going back in time
+                next = ((long) Math.max(newTimeInSec, lastSecFromEpoch + 1) << 32) | 1L;
+            } else {
+                next = last + 1;
+            }
+            if (lastTimestamp.compareAndSet(last, next))
+                break;
+        }
+        return new BSONTimestamp((int) (next >>> 32), (int) next);
+    }
 
     /**
-     * ordinal used for Timestamp to BSONTimestamp conversion
+     * A JS object or array being converted by
+     * {@link BSONizer#convertJSDocument(Object, boolean, String)}.
      */
-    private static int timestampIncrementer = 1;
+    private static class JSFrame {
 
-    private static synchronized BSONTimestamp convertTimestampToBSONTimestamp(
-            Timestamp tstamp) {
-        BSONTimestamp bsTstamp;
-        int newTimeInSec = (int) tstamp.getT();
-        if (newTimeInSec == 0) {
-            newTimeInSec = (int) (new Date().getTime() / 1000);
-            // seconds from epoch has changed, reset ordinal and set the new
-            // lastSecFromEpoch value
-            if (newTimeInSec != lastSecFromEpoch) {
-                lastSecFromEpoch = newTimeInSec;
-                timestampIncrementer = 1;
-            } else
-                timestampIncrementer++;
-            bsTstamp = new BSONTimestamp(lastSecFromEpoch, timestampIncrementer);
-        } else
-            bsTstamp = new BSONTimestamp(newTimeInSec, (int) tstamp.getI());
+        private final NativeArray jsArray;
+        private final NativeObject jsObject;
+        private final Object[] keys;
+        private final int length;
+        private int index = 0;
 
-        return bsTstamp;
+        private final List<Object> bsonArray;
+        private final BasicDBObject bsonDocument;
+        private Date specialDate;
+
+        private final JSFrame parent;
+        private final Object parentKey;
+
+        public JSFrame(Object js, JSFrame parent, Object parentKey) {
+            this.parent = parent;
+            this.parentKey = parentKey;
+            if (js instanceof NativeArray) {
+                jsArray = (NativeArray) js;
+                jsObject = null;
+                keys = null;
+                length = Long.valueOf(jsArray.getLength()).intValue();
+                bsonArray = new ArrayList<Object>(length);
+                bsonDocument = null;
+            } else {
+                jsArray = null;
+                jsObject = (NativeObject) js;
+                keys = jsObject.getIds();
+                length = keys.length;
+                bsonArray = null;
+                bsonDocument = new BasicDBObject();
+            }
+        }
+
+        public boolean hasNext() {
+            return index < length;
+        }
+
+        public Object nextKey() {
+            int current = index++;
+            return (keys == null) ? Integer.valueOf(current) : keys[current];
+        }
+
+        public Object valueOf(Object key) {
+            if (jsArray != null)
+                return getArrayElement(jsArray, (Integer) key);
+            return extractJSProperty(jsObject, key);
+        }
+
+        public void add(Object key, Object bsonValue) {
+            if (bsonArray != null)
+                bsonArray.add(bsonValue);
+            else
+                bsonDocument.put(key.toString(), bsonValue);
+        }
+
+        public Object result() {
+            if (specialDate != null)
+                return specialDate;
+            return (bsonArray != null) ? bsonArray : bsonDocument;
+        }
     }
 
-    private static class JSPopulatePropertyAction extends MongoAction {
+    /**
+     * A BSON document or list being converted by
+     * {@link BSONizer#convertBSONDocument(Context, MongoScope, Object)}.
+     */
+    private static class BSONFrame {
 
-        private Scriptable obj;
-        private Object key;
-        private Object value;
+        /**
+         * Set for random access lists, read by index.
+         */
+        private final List<?> bsonList;
+        private final Iterator<?> listValues;
+        private final BSONObject bsonObject;
+        private final Iterator<String> keys;
+        private int index = 0;
 
-        public JSPopulatePropertyAction(Scriptable obj, Object key, Object value) {
-            super(null);
-            this.obj = obj;
-            this.key = key;
-            this.value = value;
+        private final Object[] elements;
+        private final Scriptable jsObject;
+
+        /**
+         * Shape of the document fields converted so far, null if unknown.
+         */
+        private final ShapeCache shapes;
+        private ShapeCache.Shape shape;
+        private boolean knownShape;
+
+        private final BSONFrame parent;
+        private final Object parentKey;
+
+        public BSONFrame(Context context, MongoScope mongoScope, Object bson,
+                BSONFrame parent, Object parentKey) {
+            this.parent = parent;
+            this.parentKey = parentKey;
+            if (bson instanceof List<?>) {
+                List<?> list = (List<?>) bson;
+                if (list instanceof RandomAccess) {
+                    bsonList = list;
+                    listValues = null;
+                } else {
+                    bsonList = null;
+                    listValues = list.iterator();
+                }
+                elements = new Object[list.size()];
+                bsonObject = null;
+                keys = null;
+                jsObject = null;
+                shapes = null;
+            } else {
+                bsonObject = (BSONObject) bson;
+                keys = bsonObject.keySet().iterator();
+                jsObject = context.newObject(mongoScope);
+                bsonList = null;
+                listValues = null;
+                elements = null;
+                shapes = (mongoScope == null) ? null : mongoScope
+                        .getShapeCache();
+                if (shapes != null) {
+                    shape = shapes.root();
+                    knownShape = true;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            if (keys != null)
+                return keys.hasNext();
+            return (bsonList != null) ? (index < elements.length)
+                    : listValues.hasNext();
+        }
+
+        /**
+         * @return the index of the next list value, the {@link ShapeCache.Shape}
+         *         adding the next document field or the field name itself if
+         *         the shape is not remembered
+         */
+        public Object nextKey() {
+            if (keys == null)
+                return Integer.valueOf(index++);
+            String name = keys.next();
+            if (shape != null) {
+                ShapeCache.Shape next = shape.next(name);
+                if (next == null) {
+                    knownShape = false;
+                    next = shape.extend(name, shapes);
+                }
+                shape = next;
+                if (shape != null)
+                    return shape;
+            }
+            knownShape = false;
+            return name;
+        }
+
+        public Object valueOf(Object key) {
+            if (keys != null)
+                return bsonObject
+                        .get((key instanceof ShapeCache.Shape) ? ((ShapeCache.Shape) key).name
+                                : (String) key);
+            return (bsonList != null) ? bsonList.get((Integer) key)
+                    : listValues.next();
+        }
+
+        public void add(Context context, Object key, Object jsValue) {
+            if (elements != null)
+                elements[(Integer) key] = jsValue;
+            else if (key instanceof ShapeCache.Shape)
+                ((ShapeCache.Shape) key).put(jsObject, jsValue);
+            else
+                ScriptRuntime.setObjectElem(jsObject, key, jsValue, context);
+        }
+
+        public Object result(Context context, MongoScope mongoScope) {
+            if (elements != null)
+                return context.newArray(mongoScope, elements);
+            if (shapes != null)
+                shapes.record(knownShape);
+            return jsObject;
+        }
+    }
+
+    private static class JSConvertBSONAction extends MongoAction {
+
+        private String namespace;
+        private Object bsonObject;
+
+        public JSConvertBSONAction(MongoScope mongoScope, Object bsonObject) {
+            this(mongoScope, null, bsonObject);
+        }
+
+        public JSConvertBSONAction(MongoScope mongoScope, String namespace,
+                Object bsonObject) {
+            super(mongoScope);
+            this.namespace = namespace;
+            this.bsonObject = bsonObject;
         }
 
         @Override
         public Object doRun(Context cx) {
-            return ScriptRuntime.setObjectElem(obj, key, value, cx);
+            if (namespace == null)
+                return convertBSONtoJS(cx, mongoScope, bsonObject);
+            return convertBSONtoJS(cx, mongoScope, namespace, bsonObject);
         }
 
     }
@@ -0,0 +1,138 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converters keyed by class for {@link BSONizer}. The converter for a runtime
+ * class is resolved once and cached, so converting a value costs a single map
+ * lookup instead of a chain of instanceof checks.
+ * 
+ * Registered converters take precedence over the built-in ones, the most
+ * recently registered first. Built-in converters are tried in the order they
+ * were added, the first one whose class is assignable from the value class
+ * wins.
+ * 
+ * @author nlloyd
+ * 
+ */
+class ConverterTable<T> {
+
+    private final List<Class<?>> builtInClasses = new ArrayList<Class<?>>();
+    private final List<T> builtInConverters = new ArrayList<T>();
+
+    private final List<Class<?>> registeredClasses = new ArrayList<Class<?>>();
+    private final List<T> registeredConverters = new ArrayList<T>();
+
+    private final ConcurrentHashMap<Class<?>, T> resolved = new ConcurrentHashMap<Class<?>, T>();
+
+    /**
+     * Changes whenever a converter is added, registered or unregistered, so
+     * converters resolved and kept elsewhere (ex. by {@link ShapeCodec}) can
+     * tell they are stale.
+     */
+    private volatile int version;
+
+    /**
+     * Number of registered converters, readable without synchronization.
+     */
+    private volatile int registeredCount;
+
+    /**
+     * Converter used when no other converter applies.
+     */
+    private final T fallback;
+
+    ConverterTable(T fallback) {
+        this.fallback = fallback;
+    }
+
+    synchronized void addBuiltIn(Class<?> type, T converter) {
+        builtInClasses.add(type);
+        builtInConverters.add(converter);
+        resolved.clear();
+        version++;
+    }
+
+    synchronized void register(Class<?> type, T converter) {
+        unregister(type);
+        registeredClasses.add(type);
+        registeredConverters.add(converter);
+        registeredCount = registeredClasses.size();
+        resolved.clear();
+        version++;
+    }
+
+    synchronized boolean unregister(Class<?> type) {
+        int index = registeredClasses.indexOf(type);
+        if (index < 0)
+            return false;
+        registeredClasses.remove(index);
+        registeredConverters.remove(index);
+        registeredCount = registeredClasses.size();
+        resolved.clear();
+        version++;
+        return true;
+    }
+
+    /**
+     * @return the version of the converters
+     */
+    int version() {
+        return version;
+    }
+
+    /**
+     * @return true if at least one converter is registered
+     */
+    boolean hasRegistered() {
+        return registeredCount > 0;
+    }
+
+    T get(Class<?> type) {
+        T converter = resolved.get(type);
+        if (converter == null)
+            converter = resolve(type);
+        return converter;
+    }
+
+    private synchronized T resolve(Class<?> type) {
+        T converter = null;
+        for (int i = registeredClasses.size() - 1; (i >= 0)
+                && (converter == null); i--) {
+            if (registeredClasses.get(i).isAssignableFrom(type))
+                converter = registeredConverters.get(i);
+        }
+        for (int i = 0; (i < builtInClasses.size()) && (converter == null); i++) {
+            if (builtInClasses.get(i).isAssignableFrom(type))
+                converter = builtInConverters.get(i);
+        }
+        if (converter == null)
+            converter = fallback;
+        resolved.put(type, converter);
+        return converter;
+    }
+
+}
@@ -0,0 +1,296 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import java.util.Date;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+/**
+ * Parses and formats ISO-8601 (RFC 3339) date-times such as
+ * <code>2013-10-09T02:17:53.123Z</code> or
+ * <code>2013-10-09T04:17:53+02:00</code> by hand, without
+ * {@link java.text.SimpleDateFormat} instances or exceptions for invalid
+ * input, for the <code>{$date: ..}</code> objects converted by
+ * {@link BSONizer}.
+ * 
+ * Dates are proleptic Gregorian (ISO-8601) for years 0000 to 9999.
+ * 
+ * @author nlloyd
+ * 
+ */
+public final class ISODateUtils {
+
+    /**
+     * Returned by the parse methods for invalid input.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    public static final String ISO_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    public static final String ISO_MILLIS_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * First day of the Gregorian calendar in {@link java.util.GregorianCalendar},
+     * which uses the Julian calendar for earlier dates.
+     */
+    private static final long GREGORIAN_CUTOVER = -12219292800000L;
+
+    /**
+     * 10000-01-01T00:00:00Z
+     */
+    private static final long YEAR_10000 = 253402300800000L;
+
+    private ISODateUtils() {
+    }
+
+    /**
+     * Parses a date-time made of a <code>yyyy-MM-dd</code> date, a
+     * <code>T</code> (or space) separator, a <code>HH:mm</code> time with
+     * optional seconds and fraction (<code>.</code> or <code>,</code>, digits
+     * past milliseconds are ignored) and a <code>Z</code> or
+     * <code>&plusmn;HH:mm</code>, <code>&plusmn;HHmm</code> or
+     * <code>&plusmn;HH</code> offset.
+     * 
+     * @param text
+     * @return milliseconds since epoch or {@link #INVALID}
+     */
+    public static long parseMillis(CharSequence text) {
+        int length = text.length();
+        if ((length < 17) || (text.charAt(4) != '-')
+                || (text.charAt(7) != '-') || (text.charAt(13) != ':'))
+            return INVALID;
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 1)
+                || (day > daysInMonth(year, month)))
+            return INVALID;
+        char separator = text.charAt(10);
+        if ((separator != 'T') && (separator != 't') && (separator != ' '))
+            return INVALID;
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        if ((hour < 0) || (hour > 23) || (minute < 0) || (minute > 59))
+            return INVALID;
+
+        int position = 16;
+        int second = 0;
+        int millis = 0;
+        if (text.charAt(position) == ':') {
+            second = digits(text, position + 1, 2);
+            // 60 for leap seconds
+            if ((second < 0) || (second > 60))
+                return INVALID;
+            position += 3;
+            if ((position < length)
+                    && ((text.charAt(position) == '.') || (text.charAt(position) == ','))) {
+                int start = ++position;
+                while ((position < length) && isDigit(text.charAt(position))) {
+                    if (position - start < 3)
+                        millis = millis * 10 + (text.charAt(position) - '0');
+                    position++;
+                }
+                if (position == start)
+                    return INVALID;
+                for (int i = position - start; i < 3; i++)
+                    millis *= 10;
+            }
+        }
+
+        if (position >= length)
+            return INVALID;
+        int offset = 0;
+        char zone = text.charAt(position);
+        if ((zone == 'Z') || (zone == 'z')) {
+            position++;
+        } else if ((zone == '+') || (zone == '-')) {
+            int offsetHours = digits(text, position + 1, 2);
+            if ((offsetHours < 0) || (offsetHours > 23))
+                return INVALID;
+            position += 3;
+            int offsetMinutes = 0;
+            if (position < length) {
+                if (text.charAt(position) == ':')
+                    position++;
+                offsetMinutes = digits(text, position, 2);
+                if ((offsetMinutes < 0) || (offsetMinutes > 59))
+                    return INVALID;
+                position += 2;
+            }
+            offset = offsetHours * 60 + offsetMinutes;
+            if (zone == '-')
+                offset = -offset;
+        } else {
+            return INVALID;
+        }
+        if (position != length)
+            return INVALID;
+
+        long minutes = (daysFromEpoch(year, month, day) * 24 + hour) * 60
+                + minute - offset;
+        return minutes * 60000 + second * 1000 + millis;
+    }
+
+    /**
+     * Parses a decimal number of milliseconds since epoch, such as the value
+     * of a <code>{$numberLong: ".."}</code> object.
+     * 
+     * @param text
+     * @return milliseconds since epoch or {@link #INVALID}
+     */
+    public static long parseEpochMillis(CharSequence text) {
+        int length = text.length();
+        boolean negative = (length > 0) && (text.charAt(0) == '-');
+        int position = negative ? 1 : 0;
+        // at most 18 digits, so the value can not overflow
+        if ((length == position) || (length - position > 18))
+            return INVALID;
+        long millis = 0;
+        for (; position < length; position++) {
+            char c = text.charAt(position);
+            if (!isDigit(c))
+                return INVALID;
+            millis = millis * 10 + (c - '0');
+        }
+        return negative ? -millis : millis;
+    }
+
+    /**
+     * Formats the given date in UTC. The {@link #ISO_PATTERN} and
+     * {@link #ISO_MILLIS_PATTERN} patterns are formatted by hand, any other
+     * pattern by {@link DateFormatUtils#formatUTC(Date, String)}.
+     * 
+     * @param date
+     * @param pattern
+     * @return
+     */
+    public static String formatUTC(Date date, String pattern) {
+        long time = date.getTime();
+        boolean withMillis = ISO_MILLIS_PATTERN.equals(pattern);
+        if ((!withMillis && !ISO_PATTERN.equals(pattern))
+                || (time < GREGORIAN_CUTOVER) || (time >= YEAR_10000))
+            return DateFormatUtils.formatUTC(date, pattern);
+
+        long days = floorDiv(time, MILLIS_PER_DAY);
+        int millisOfDay = (int) (time - days * MILLIS_PER_DAY);
+        // civil from days, see daysFromEpoch(..)
+        long shifted = days + 719468;
+        long era = shifted / 146097;
+        int dayOfEra = (int) (shifted - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = (shiftedMonth < 10) ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + ((month <= 2) ? 1 : 0);
+
+        char[] chars = new char[withMillis ? 24 : 20];
+        putDigits(chars, 0, year, 4);
+        chars[4] = '-';
+        putDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        putDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        putDigits(chars, 11, millisOfDay / 3600000, 2);
+        chars[13] = ':';
+        putDigits(chars, 14, millisOfDay / 60000 % 60, 2);
+        chars[16] = ':';
+        putDigits(chars, 17, millisOfDay / 1000 % 60, 2);
+        if (withMillis) {
+            chars[19] = '.';
+            putDigits(chars, 20, millisOfDay % 1000, 3);
+        }
+        chars[chars.length - 1] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * Days since 1970-01-01 of the given proleptic Gregorian date, after
+     * Howard Hinnant's days_from_civil algorithm.
+     */
+    private static long daysFromEpoch(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        long era = ((y >= 0) ? y : y - 399) / 400;
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5
+                + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            boolean leap = ((year % 4) == 0)
+                    && (((year % 100) != 0) || ((year % 400) == 0));
+            return leap ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return the value of the given number of decimal digits, -1 if any of
+     *         them is missing or not a digit
+     */
+    private static int digits(CharSequence text, int start, int count) {
+        if (start + count > text.length())
+            return -1;
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+    private static void putDigits(char[] chars, int start, int value,
+            int count) {
+        for (int i = start + count - 1; i >= start; i--) {
+            chars[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        if (((dividend % divisor) != 0) && ((dividend < 0) != (divisor < 0)))
+            quotient--;
+        return quotient;
+    }
+
+}
@@ -0,0 +1,390 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.bson.ScriptableDBObject;
+
+/**
+ * Document shapes (ordered field names) seen by
+ * {@link BSONizer#convertBSONtoJS(org.mozilla.javascript.Context, com.github.nlloyd.hornofmongo.MongoScope, Object)}
+ * for one {@link com.github.nlloyd.hornofmongo.MongoScope}.
+ * 
+ * Shapes form a tree, each {@link Shape} extends its parent by one field name.
+ * Documents of a known shape reuse the interned field names of the shape and
+ * their already resolved JS property keys (name or index) instead of
+ * resolving each field name again.
+ * 
+ * At most {@link #getMaxShapes()} shapes are remembered, documents with
+ * fields beyond that are converted field by field as before.
+ * 
+ * Once {@link #getCodecThreshold()} documents of the same shape were read
+ * from or written to a namespace, that shape gets a {@link ShapeCodec} which
+ * converts the following documents of the namespace having that exact shape.
+ * 
+ * @author nlloyd
+ * 
+ */
+public class ShapeCache {
+
+    public static final int DEFAULT_MAX_SHAPES = 4096;
+
+    public static final int DEFAULT_CODEC_THRESHOLD = 1000;
+
+    private volatile Shape root = new Shape(null, null);
+
+    private final AtomicInteger shapeCount = new AtomicInteger();
+
+    private volatile int maxShapes = DEFAULT_MAX_SHAPES;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile int codecThreshold = DEFAULT_CODEC_THRESHOLD;
+
+    /**
+     * The codec of the hot shape of each namespace.
+     */
+    private final ConcurrentHashMap<String, ShapeCodec> codecs = new ConcurrentHashMap<String, ShapeCodec>();
+
+    /**
+     * Documents converted without codec by namespace and shape.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Shape, AtomicInteger>> documents = new ConcurrentHashMap<String, ConcurrentHashMap<Shape, AtomicInteger>>();
+
+    private final AtomicLong codecHits = new AtomicLong();
+
+    private final AtomicLong codecMisses = new AtomicLong();
+
+    /**
+     * @return the empty shape, every document shape starts from
+     */
+    Shape root() {
+        return root;
+    }
+
+    /**
+     * Counts a converted document.
+     * 
+     * @param hit
+     *            true if the whole shape of the document was known
+     */
+    void record(boolean hit) {
+        if (hit)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+    }
+
+    /**
+     * @param namespace
+     * @return the codec of the hot shape of the given namespace, null if
+     *         there is none yet
+     */
+    ShapeCodec codecFor(String namespace) {
+        return codecs.get(namespace);
+    }
+
+    /**
+     * Counts a document converted by the codec of its namespace.
+     * 
+     * @param hit
+     *            false if the document was of another shape
+     */
+    void recordCodec(boolean hit) {
+        if (hit)
+            codecHits.incrementAndGet();
+        else
+            codecMisses.incrementAndGet();
+    }
+
+    /**
+     * Same as {@link #observe(String, Shape)} for a document whose shape is
+     * not known yet, walks the shape tree along the given field names.
+     * 
+     * @param namespace
+     * @param fieldNames
+     *            the field names of the document, in order
+     */
+    void observe(String namespace, Iterator<String> fieldNames) {
+        if (codecThreshold == 0)
+            return;
+        Shape shape = root;
+        while ((shape != null) && fieldNames.hasNext()) {
+            String name = fieldNames.next();
+            Shape next = shape.next(name);
+            shape = (next == null) ? shape.extend(name, this) : next;
+        }
+        observe(namespace, shape);
+    }
+
+    /**
+     * Counts a document of the given namespace converted without codec, its
+     * shape becomes the hot shape of the namespace and gets a codec once the
+     * namespace saw {@link #getCodecThreshold()} documents of that shape.
+     * 
+     * @param namespace
+     * @param shape
+     *            the shape of the whole document, null if it is not
+     *            remembered
+     */
+    void observe(String namespace, Shape shape) {
+        int threshold = codecThreshold;
+        if ((threshold == 0) || (shape == null))
+            return;
+        ConcurrentHashMap<Shape, AtomicInteger> counts = documents
+                .get(namespace);
+        if (counts == null) {
+            counts = new ConcurrentHashMap<Shape, AtomicInteger>();
+            ConcurrentHashMap<Shape, AtomicInteger> existing = documents
+                    .putIfAbsent(namespace, counts);
+            if (existing != null)
+                counts = existing;
+        }
+        AtomicInteger count = counts.get(shape);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = counts.putIfAbsent(shape, count);
+            if (existing != null)
+                count = existing;
+        }
+        if (count.incrementAndGet() < threshold)
+            return;
+        if (shape.codec == null) {
+            if (!ShapeCodec.supports(shape))
+                return;
+            shape.codec = new ShapeCodec(shape);
+        }
+        codecs.put(namespace, shape.codec);
+    }
+
+    /**
+     * @return the number of converted documents whose shape was known
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of converted documents with at least one field
+     *         beyond the known shapes
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits over converted documents, 0 if none was converted yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return (total == 0) ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of remembered shapes
+     */
+    public int getShapeCount() {
+        return shapeCount.get();
+    }
+
+    /**
+     * @return the maxShapes
+     */
+    public int getMaxShapes() {
+        return maxShapes;
+    }
+
+    /**
+     * @param maxShapes
+     *            the maximum number of remembered shapes, 0 remembers none
+     */
+    public void setMaxShapes(int maxShapes) {
+        if (maxShapes < 0)
+            throw new IllegalArgumentException(
+                    "maxShapes must not be negative: " + maxShapes);
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @return the number of documents converted by the codec of the hot shape
+     *         of their namespace
+     */
+    public long getCodecHits() {
+        return codecHits.get();
+    }
+
+    /**
+     * @return the number of documents not matching the codec of the hot shape
+     *         of their namespace, converted generically instead
+     */
+    public long getCodecMisses() {
+        return codecMisses.get();
+    }
+
+    /**
+     * @return the number of namespaces whose hot shape has a codec
+     */
+    public int getCodecCount() {
+        return codecs.size();
+    }
+
+    /**
+     * @return the codecThreshold
+     */
+    public int getCodecThreshold() {
+        return codecThreshold;
+    }
+
+    /**
+     * @param codecThreshold
+     *            the number of documents of one shape read from or written to
+     *            a namespace before that shape gets a codec, 0 creates none
+     */
+    public void setCodecThreshold(int codecThreshold) {
+        if (codecThreshold < 0)
+            throw new IllegalArgumentException(
+                    "codecThreshold must not be negative: " + codecThreshold);
+        this.codecThreshold = codecThreshold;
+    }
+
+    /**
+     * Forgets all shapes and codecs and resets the hit and miss counts.
+     */
+    public void clear() {
+        root = new Shape(null, null);
+        shapeCount.set(0);
+        hits.set(0);
+        misses.set(0);
+        codecs.clear();
+        documents.clear();
+        codecHits.set(0);
+        codecMisses.set(0);
+    }
+
+    /**
+     * The shape of documents holding the fields of the parent shape followed
+     * by one more field.
+     */
+    static final class Shape {
+
+        /**
+         * Interned field name, null for the empty shape.
+         */
+        final String name;
+
+        /**
+         * Index the field name stands for, -1 if it is a name.
+         */
+        private final int index;
+
+        final Shape parent;
+
+        private final ConcurrentHashMap<String, Shape> next = new ConcurrentHashMap<String, Shape>();
+
+        /**
+         * Codec of this shape, shared by the namespaces it is hot in.
+         */
+        private volatile ShapeCodec codec;
+
+        private Shape(Shape parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.index = (name == null) ? -1 : ScriptableDBObject
+                    .toIndex(name);
+        }
+
+        /**
+         * @param fieldName
+         * @return the shape extended by the given field name, null if it is
+         *         not known
+         */
+        Shape next(String fieldName) {
+            return next.get(fieldName);
+        }
+
+        /**
+         * @param fieldName
+         * @param cache
+         * @return the shape extended by the given field name, remembered in
+         *         the given cache if it is not full
+         */
+        Shape extend(String fieldName, ShapeCache cache) {
+            if (cache.shapeCount.incrementAndGet() > cache.maxShapes) {
+                cache.shapeCount.decrementAndGet();
+                return null;
+            }
+            Shape shape = new Shape(this, fieldName);
+            Shape existing = next.putIfAbsent(fieldName, shape);
+            if (existing != null) {
+                cache.shapeCount.decrementAndGet();
+                shape = existing;
+            }
+            return shape;
+        }
+
+        /**
+         * @param id
+         *            a JS property id, a name or an index
+         * @return true if the given id is the field this shape adds
+         */
+        boolean matches(Object id) {
+            if (id instanceof String)
+                return (index < 0) && name.equals(id);
+            return (index >= 0) && (id instanceof Integer)
+                    && (((Integer) id).intValue() == index);
+        }
+
+        /**
+         * Sets the field this shape adds on the given JS object.
+         * 
+         * @param jsObject
+         * @param value
+         */
+        void put(Scriptable jsObject, Object value) {
+            if (index >= 0) {
+                ScriptableObject.putProperty(jsObject, index, value);
+            } else {
+                // same as ScriptableObject.putProperty(..) for the fresh
+                // objects built by BSONizer, unless the name is inherited
+                // (ex. a setter defined on Object.prototype), looked up on
+                // every put as Rhino does not tell when a prototype changes
+                Scriptable prototype = jsObject.getPrototype();
+                if ((prototype == null)
+                        || !ScriptableObject.hasProperty(prototype, name))
+                    jsObject.put(name, jsObject, value);
+                else
+                    ScriptableObject.putProperty(jsObject, name, value);
+            }
+        }
+    }
+
+}
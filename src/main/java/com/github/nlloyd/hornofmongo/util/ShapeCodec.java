@@ -0,0 +1,194 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Converts documents of one {@link ShapeCache.Shape}, the hot shape of a
+ * namespace, between BSON and JS. The field names and their JS property keys
+ * are fixed and the converter of each field is kept for the class of the last
+ * value it converted, so a document of this shape is converted without
+ * walking the shape tree or resolving converters. Documents of any other
+ * shape are left to the generic conversion.
+ * 
+ * Only the top level fields are specialized, nested documents and arrays are
+ * converted by {@link BSONizer} as usual.
+ * 
+ * @author nlloyd
+ * 
+ */
+final class ShapeCodec {
+
+    private final ShapeCache.Shape[] fields;
+
+    /**
+     * Converters by field, replaced when a field holds a value of another
+     * class or a converter was registered or unregistered since.
+     */
+    private final FieldConverter<BSONToJSConverter>[] bsonConverters;
+    private final FieldConverter<JSToBSONConverter>[] jsConverters;
+
+    @SuppressWarnings("unchecked")
+    ShapeCodec(ShapeCache.Shape shape) {
+        LinkedList<ShapeCache.Shape> path = new LinkedList<ShapeCache.Shape>();
+        for (ShapeCache.Shape current = shape; current.name != null; current = current.parent)
+            path.addFirst(current);
+        fields = path.toArray(new ShapeCache.Shape[path.size()]);
+        bsonConverters = new FieldConverter[fields.length];
+        jsConverters = new FieldConverter[fields.length];
+    }
+
+    /**
+     * @param shape
+     * @return false if documents of the given shape need the generic
+     *         conversion (ex. <code>{$date: ..}</code> objects)
+     */
+    static boolean supports(ShapeCache.Shape shape) {
+        for (ShapeCache.Shape current = shape; current.name != null; current = current.parent)
+            if ("$date".equals(current.name))
+                return false;
+        return true;
+    }
+
+    /**
+     * @param context
+     * @param mongoScope
+     * @param bsonObject
+     * @return the JS object or null if the document is of another shape
+     */
+    Scriptable decode(Context context, MongoScope mongoScope,
+            BSONObject bsonObject) {
+        if (bsonObject instanceof Map) {
+            // read keys and values in one pass (ex. BasicDBObject)
+            Set<?> entries = ((Map<?, ?>) bsonObject).entrySet();
+            if (entries.size() != fields.length)
+                return null;
+            Scriptable jsObject = context.newObject(mongoScope);
+            int index = 0;
+            for (Object entry : entries) {
+                Map.Entry<?, ?> field = (Map.Entry<?, ?>) entry;
+                if (!fields[index].name.equals(field.getKey()))
+                    return null;
+                fields[index].put(jsObject,
+                        toJS(context, mongoScope, index, field.getValue()));
+                index++;
+            }
+            return jsObject;
+        }
+        Set<String> keys = bsonObject.keySet();
+        if (keys.size() != fields.length)
+            return null;
+        Iterator<String> names = keys.iterator();
+        for (int i = 0; i < fields.length; i++)
+            if (!fields[i].name.equals(names.next()))
+                return null;
+        Scriptable jsObject = context.newObject(mongoScope);
+        for (int i = 0; i < fields.length; i++)
+            fields[i].put(jsObject, toJS(context, mongoScope, i,
+                    bsonObject.get(fields[i].name)));
+        return jsObject;
+    }
+
+    /**
+     * @param jsObject
+     * @param isJsObj
+     * @param dateFormat
+     * @return the BSON document or null if the object is of another shape
+     */
+    BasicDBObject encode(NativeObject jsObject, boolean isJsObj,
+            String dateFormat) {
+        Object[] ids = jsObject.getIds();
+        if (ids.length != fields.length)
+            return null;
+        for (int i = 0; i < fields.length; i++)
+            if (!fields[i].matches(ids[i]))
+                return null;
+        BasicDBObject bsonObject = new BasicDBObject();
+        for (int i = 0; i < fields.length; i++) {
+            Object value = BSONizer.extractJSProperty(jsObject, ids[i]);
+            Object bsonValue = null;
+            if (value != null) {
+                FieldConverter<JSToBSONConverter> converter = jsConverters[i];
+                int version = BSONizer.jsConverterVersion();
+                if ((converter == null)
+                        || (converter.valueClass != value.getClass())
+                        || (converter.version != version)) {
+                    converter = new FieldConverter<JSToBSONConverter>(
+                            value.getClass(), version,
+                            BSONizer.jsConverter(value.getClass()));
+                    jsConverters[i] = converter;
+                }
+                bsonValue = converter.converter.convert(value, isJsObj,
+                        dateFormat);
+            }
+            bsonObject.put(fields[i].name, bsonValue);
+        }
+        return bsonObject;
+    }
+
+    private Object toJS(Context context, MongoScope mongoScope, int index,
+            Object value) {
+        if (value == null)
+            return null;
+        FieldConverter<BSONToJSConverter> converter = bsonConverters[index];
+        int version = BSONizer.bsonConverterVersion();
+        if ((converter == null) || (converter.valueClass != value.getClass())
+                || (converter.version != version)) {
+            converter = new FieldConverter<BSONToJSConverter>(
+                    value.getClass(), version,
+                    BSONizer.bsonConverter(value.getClass()));
+            bsonConverters[index] = converter;
+        }
+        return converter.converter.convert(context, mongoScope, value);
+    }
+
+    /**
+     * Converter of a field for values of one class, resolved at one version
+     * of the converter table, immutable so it can be shared between threads
+     * without synchronization.
+     */
+    private static final class FieldConverter<T> {
+
+        private final Class<?> valueClass;
+        private final int version;
+        private final T converter;
+
+        private FieldConverter(Class<?> valueClass, int version, T converter) {
+            this.valueClass = valueClass;
+            this.version = version;
+            this.converter = converter;
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.javascript.ContextFactory;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class CompiledScriptCacheTest {
+
+    @After
+    public void tearDown() {
+        CompiledScriptCache
+                .setMaxEntries(CompiledScriptCache.DEFAULT_MAX_ENTRIES);
+        CompiledScriptCache
+                .setMaxEstimatedBytes(CompiledScriptCache.DEFAULT_MAX_ESTIMATED_BYTES);
+        CompiledScriptCache.clear();
+        MongoRuntime.createMongoScope();
+        MongoContextFactory factory = (MongoContextFactory) ContextFactory
+                .getGlobal();
+        factory.setPromotionThreshold(MongoContextFactory.DEFAULT_PROMOTION_THRESHOLD);
+        factory.setPromotedOptimizationLevel(
+                MongoContextFactory.DEFAULT_PROMOTED_OPTIMIZATION_LEVEL);
+    }
+
+    // scripts span multiple lines so they are not checked for shell commands
+
+    @Test
+    public void testScriptCompiledOncePerText() {
+        CompiledScriptCache.clear();
+        MongoScope first = MongoRuntime.createMongoScope();
+        MongoScope second = MongoRuntime.createMongoScope();
+        long misses = CompiledScriptCache.getMissCount();
+        long hits = CompiledScriptCache.getHitCount();
+
+        MongoRuntime.call(new MongoScriptAction(first, "test",
+                "var x = 40;\nx += 2;\n"));
+        MongoRuntime.call(new MongoScriptAction(second, "test",
+                "var x = 40;\nx += 2;\n"));
+        assertEquals(misses + 1, CompiledScriptCache.getMissCount());
+        assertEquals(hits + 1, CompiledScriptCache.getHitCount());
+        assertEquals(1, CompiledScriptCache.size());
+        assertEquals(42, ((Number) first.get("x", first)).intValue());
+        assertEquals(42, ((Number) second.get("x", second)).intValue());
+
+        // different text or name is a different entry
+        MongoRuntime.call(new MongoScriptAction(first, "test",
+                "var x = 40;\nx += 3;\n"));
+        MongoRuntime.call(new MongoScriptAction(first, "other",
+                "var x = 40;\nx += 2;\n"));
+        assertEquals(misses + 3, CompiledScriptCache.getMissCount());
+        assertEquals(3, CompiledScriptCache.size());
+        assertEquals(
+                CompiledScriptCache.estimateSize("var x = 40;\nx += 2;\n") * 2
+                        + CompiledScriptCache.estimateSize("var x = 40;\nx += 3;\n"),
+                CompiledScriptCache.getEstimatedBytes());
+    }
+
+    @Test
+    public void testBoundsAndEviction() {
+        CompiledScriptCache.clear();
+        CompiledScriptCache.setMaxEntries(2);
+        MongoScope mongoScope = MongoRuntime.createMongoScope();
+        long evictions = CompiledScriptCache.getEvictionCount();
+        for (int i = 0; i < 5; i++)
+            MongoRuntime.call(new MongoScriptAction(mongoScope, "churn",
+                    "var y = 0;\ny += " + i + ";\n"));
+        assertEquals(2, CompiledScriptCache.size());
+        assertEquals(evictions + 3, CompiledScriptCache.getEvictionCount());
+
+        assertEquals(2, CompiledScriptCache.evict("churn"));
+        assertEquals(0, CompiledScriptCache.size());
+        assertEquals(0, CompiledScriptCache.getEstimatedBytes());
+
+        CompiledScriptCache.setMaxEntries(10);
+        CompiledScriptCache.setMaxEstimatedBytes(CompiledScriptCache
+                .estimateSize("var y = 0;\ny += 0;\n"));
+        MongoRuntime.call(new MongoScriptAction(mongoScope, "churn",
+                "var y = 0;\ny += 0;\n"));
+        MongoRuntime.call(new MongoScriptAction(mongoScope, "churn",
+                "var y = 0;\ny += 1;\n"));
+        assertEquals(1, CompiledScriptCache.size());
+        MongoRuntime.call(new MongoScriptAction(mongoScope, "churn",
+                "var y = 0;\ny += 10000;\n"));
+        assertEquals(1, CompiledScriptCache.size());
+        assertEquals(10000, ((Number) mongoScope.get("y", mongoScope)).intValue());
+        assertTrue(CompiledScriptCache.getCompileTimeNanos() > 0);
+    }
+
+    @Test
+    public void testTieredExecution() {
+        CompiledScriptCache.clear();
+        MongoScope mongoScope = MongoRuntime.createMongoScope();
+        MongoContextFactory factory = (MongoContextFactory) ContextFactory
+                .getGlobal();
+        factory.setPromotionThreshold(2);
+        long promotions = factory.getPromotionCount();
+        long interpretedRuns = factory.getInterpretedRunCount();
+        long compiledRuns = factory.getCompiledRunCount();
+
+        String script = "var z = z ? z + 1 : 1;\nz;\n";
+        for (int i = 0; i < 2; i++)
+            MongoRuntime.call(new MongoScriptAction(mongoScope, "tiered",
+                    script));
+        assertEquals(promotions, factory.getPromotionCount());
+        assertEquals(interpretedRuns + 2, factory.getInterpretedRunCount());
+        assertEquals(compiledRuns, factory.getCompiledRunCount());
+
+        for (int i = 0; i < 2; i++)
+            MongoRuntime.call(new MongoScriptAction(mongoScope, "tiered",
+                    script));
+        assertEquals(promotions + 1, factory.getPromotionCount());
+        assertEquals(interpretedRuns + 2, factory.getInterpretedRunCount());
+        assertEquals(compiledRuns + 2, factory.getCompiledRunCount());
+        assertEquals(4, ((Number) mongoScope.get("z", mongoScope)).intValue());
+        assertEquals(1, CompiledScriptCache.size());
+
+        // threshold of 0 compiles on the first run
+        factory.setPromotionThreshold(0);
+        MongoRuntime.call(new MongoScriptAction(mongoScope, "untiered",
+                script));
+        assertEquals(promotions + 1, factory.getPromotionCount());
+        assertEquals(compiledRuns + 3, factory.getCompiledRunCount());
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class CoreScriptCacheTest {
+
+    @Test
+    public void testScopesReuseCompiledScripts() {
+        MongoRuntime.createMongoScope();
+        int cachedScripts = CoreScriptCache.size();
+        long misses = CoreScriptCache.getMissCount();
+        long hits = CoreScriptCache.getHitCount();
+        assertTrue(cachedScripts > 0);
+
+        MongoRuntime.createMongoScope();
+        assertEquals(cachedScripts, CoreScriptCache.size());
+        assertEquals(misses, CoreScriptCache.getMissCount());
+        assertEquals(hits + cachedScripts, CoreScriptCache.getHitCount());
+        assertTrue(CoreScriptCache.getCompileTimeNanos() > 0);
+    }
+
+    @Test
+    public void testCompiledClassName() {
+        assertEquals("com.github.nlloyd.hornofmongo.compiled.mongodb_utils_sh",
+                CoreScriptCache.compiledClassName("mongodb/utils_sh.js"));
+    }
+
+    @Test
+    public void testPrecompiledClassesUsed() {
+        // only available when the build ran the CoreScriptCompiler step
+        assumeTrue(getClass().getClassLoader().getResource(
+                CoreScriptCache.compiledClassName("mongodb/assert.js").replace(
+                        '.', '/')
+                        + ".class") != null);
+        CoreScriptCache.clear();
+        long precompiled = CoreScriptCache.getPrecompiledCount();
+        MongoRuntime.createMongoScope();
+        assertEquals(precompiled + CoreScriptCache.size(),
+                CoreScriptCache.getPrecompiledCount());
+    }
+
+}
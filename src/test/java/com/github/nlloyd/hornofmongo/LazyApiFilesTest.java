@@ -0,0 +1,98 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class LazyApiFilesTest {
+
+    @After
+    public void tearDown() {
+        MongoScope.setLazyApiFiles(MongoScope.getDefaultLazyApiFiles());
+    }
+
+    private static String eval(MongoScope mongoScope, String script) {
+        return Context.toString(MongoRuntime.call(new MongoScriptAction(
+                mongoScope, script)));
+    }
+
+    @Test
+    public void testLoadedOnFirstAccess() {
+        MongoScope mongoScope = MongoRuntime.createMongoScope();
+        assertTrue(mongoScope.isLazyApiPlaceholder("ShardingTest"));
+        assertTrue(mongoScope.isLazyApiPlaceholder("printShardingStatus"));
+        assertEquals("function",
+                eval(mongoScope, "typeof ShardingTest.prototype.getDB;"));
+        assertFalse(mongoScope.isLazyApiPlaceholder("ShardingTest"));
+        assertFalse(mongoScope.isLazyApiPlaceholder("printShardingStatus"));
+        // other modules are left alone
+        assertTrue(mongoScope.isLazyApiPlaceholder("ReplSetTest"));
+        assertEquals("function", eval(mongoScope, "typeof ReplSetTest;"));
+    }
+
+    @Test
+    public void testAssignmentReplacesPlaceholder() {
+        MongoScope mongoScope = MongoRuntime.createMongoScope();
+        assertEquals("5", eval(mongoScope, "myPort = 5; myPort;"));
+        assertTrue(mongoScope.isLazyApiPlaceholder("startMongod"));
+    }
+
+    @Test
+    public void testLoadedIntoChildScope() {
+        MongoScope sharedScope = MongoRuntime.createSharedMongoScope();
+        MongoScope child1 = MongoRuntime.createMongoScope(sharedScope);
+        MongoScope child2 = MongoRuntime.createMongoScope(sharedScope);
+        assertEquals("function", eval(child1, "typeof MongoRunner;"));
+        assertTrue(child1.has("MongoRunner", child1));
+        assertFalse(child2.has("MongoRunner", child2));
+        assertTrue(sharedScope.isLazyApiPlaceholder("MongoRunner"));
+        assertEquals("function", eval(child2, "typeof MongoRunner;"));
+    }
+
+    @Test
+    public void testEagerWhenNotLazy() {
+        Map<String, String[]> lazyFiles = MongoScope.getDefaultLazyApiFiles();
+        MongoScope.setLazyApiFiles(null);
+        assertTrue(MongoScope.getLazyApiFiles().isEmpty());
+        MongoScope mongoScope = MongoRuntime.createMongoScope();
+        assertFalse(mongoScope.isLazyApiPlaceholder("ShardingTest"));
+        assertEquals("function", eval(mongoScope, "typeof ShardingTest;"));
+        // not part of the eagerly evaluated API
+        assertEquals("undefined", eval(mongoScope, "typeof ReplSetTest;"));
+        MongoScope.setLazyApiFiles(lazyFiles);
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+import com.github.nlloyd.hornofmongo.util.PrintHandler;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoScopePoolTest {
+
+    private static MongoScope sharedScope;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sharedScope = MongoRuntime.createSharedMongoScope();
+    }
+
+    private static String eval(MongoScope mongoScope, String script) {
+        return Context.toString(MongoRuntime.call(new MongoScriptAction(
+                mongoScope, script)));
+    }
+
+    @Test
+    public void testReturnedScopeIsReusedAndReset() {
+        MongoScopePool pool = new MongoScopePool(1);
+        MongoScope scope = pool.borrowScope();
+        PrintHandler printHandler = scope.getPrintHandler();
+        eval(scope, "var foo = 'bar'; tojson = function() { return 'x'; }; null;");
+        scope.setPrintHandler(null);
+        pool.returnScope(scope);
+
+        MongoScope again = pool.borrowScope();
+        assertSame(scope, again);
+        assertEquals("undefined", eval(again, "typeof foo;"));
+        assertEquals("{ \"a\" : 1 }", eval(again, "tojson({a: 1});"));
+        assertSame(printHandler, again.getPrintHandler());
+        pool.returnScope(again);
+
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(2, pool.getBorrowCount());
+        assertEquals(2, pool.getResetCount());
+        assertEquals(1, pool.getIdleCount());
+        pool.close();
+    }
+
+    @Test
+    public void testFullScopeGlobalsRestored() {
+        MongoScopePool pool = new MongoScopePool(1);
+        MongoScope scope = pool.borrowScope();
+        eval(scope, "tojson = null; var added = 1;");
+        pool.returnScope(scope);
+        assertEquals("function", eval(scope, "typeof tojson;"));
+        assertEquals("undefined", eval(scope, "typeof added;"));
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowTimeout() {
+        MongoScopePool pool = new MongoScopePool(1);
+        pool.setSharedScope(sharedScope);
+        pool.setBorrowTimeoutMillis(10);
+        MongoScope scope = pool.borrowScope();
+        try {
+            pool.borrowScope();
+            fail("expected a timeout");
+        } catch (MongoScopeException e) {
+            // expected
+        }
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(1, pool.getTimeoutCount());
+        pool.returnScope(scope);
+        assertSame(scope, pool.borrowScope());
+        pool.close();
+    }
+
+    @Test
+    public void testIdleEviction() {
+        MongoScopePool pool = new MongoScopePool(2);
+        pool.setSharedScope(sharedScope);
+        pool.setMaxIdleMillis(0);
+        MongoScope scope = pool.borrowScope();
+        pool.returnScope(scope);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getEvictedCount());
+        assertNotSame(scope, pool.borrowScope());
+        assertEquals(2, pool.getCreatedCount());
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionPolicy() {
+        MongoScopePool pool = new MongoScopePool(1);
+        pool.setSharedScope(sharedScope);
+        MongoScope scope = pool.borrowScope();
+        eval(scope, "var m = new Mongo();");
+        assertEquals(1, scope.countMongoConnections());
+        pool.returnScope(scope);
+        assertEquals(0, scope.countMongoConnections());
+
+        pool.setConnectionPolicy(MongoScopePool.ConnectionPolicy.KEEP);
+        scope = pool.borrowScope();
+        eval(scope, "var m = new Mongo();");
+        pool.returnScope(scope);
+        assertEquals(1, scope.countMongoConnections());
+
+        pool.close();
+        assertEquals(0, scope.countMongoConnections());
+        assertFalse(pool.getIdleCount() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReturnForeignScope() {
+        MongoScopePool pool = new MongoScopePool(1);
+        pool.returnScope(MongoRuntime.createMongoScope(sharedScope));
+    }
+
+}
@@ -0,0 +1,132 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.Mongo;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoScopeSnapshotTest {
+
+    private static String eval(MongoScope mongoScope, String script) {
+        return Context.toString(MongoRuntime.call(new MongoScriptAction(
+                mongoScope, script)));
+    }
+
+    private static MongoScope roundTrip(MongoScope mongoScope)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MongoScopeSnapshot.write(mongoScope, out);
+        return MongoScopeSnapshot.read(new ByteArrayInputStream(out
+                .toByteArray()));
+    }
+
+    @Test
+    public void testGlobalsAndApiRestored() throws IOException {
+        MongoScope mongoScope = MongoScopeSnapshot.createMongoScope();
+        mongoScope.setUseMongoShellWriteConcern(true);
+        eval(mongoScope, "var counter = 3;"
+                + "var helper = (function() { var factor = 2;"
+                + " return { scale: function(x) { return x * factor; } }; })();"
+                + "DBQuery.prototype.describe = function() { return 'query'; };"
+                + "typeof ShardingTest;");
+
+        MongoScope restored = roundTrip(mongoScope);
+        // later scripts are not forced into interpreted mode
+        assertFalse(restored.isInterpretedOnly());
+        assertTrue(restored.useMongoShellWriteConcern());
+        assertEquals("6", eval(restored, "helper.scale(counter);"));
+        assertEquals("query", eval(restored, "new DBQuery().describe();"));
+        assertEquals("{ \"a\" : NumberLong(5) }",
+                eval(restored, "tojson({a: NumberLong(5)});"));
+        assertFalse(restored.isLazyApiPlaceholder("ShardingTest"));
+        assertEquals("function", eval(restored, "typeof ShardingTest;"));
+        assertTrue(restored.isLazyApiPlaceholder("ReplSetTest"));
+    }
+
+    @Test
+    public void testRestoredScopeSnapshotAgain() throws IOException {
+        MongoScope mongoScope = MongoScopeSnapshot.createMongoScope();
+        eval(mongoScope, "var counter = 3;");
+
+        MongoScope restored = roundTrip(mongoScope);
+        restored.setInterpretedOnly(true);
+        eval(restored, "var scale = function(x) { return x * counter; };");
+        assertEquals("6", eval(roundTrip(restored), "scale(2);"));
+    }
+
+    @Test
+    public void testMongoReconnectsLazily() throws IOException {
+        MongoScope mongoScope = MongoScopeSnapshot.createMongoScope();
+        eval(mongoScope, "var m = new Mongo('localhost:27017');");
+        mongoScope.cleanup();
+
+        MongoScope restored = roundTrip(mongoScope);
+        assertEquals(0, restored.countMongoConnections());
+        Mongo mongo = (Mongo) ScriptableObject.getProperty(restored, "m");
+        assertEquals("localhost:27017", eval(restored, "m.host;"));
+        assertNotNull(mongo.getInnerMongo());
+        assertEquals(1, restored.countMongoConnections());
+        restored.cleanup();
+    }
+
+    @Test
+    public void testOnlyChangesWritten() throws IOException {
+        MongoScope mongoScope = MongoScopeSnapshot.createMongoScope();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MongoScopeSnapshot.write(mongoScope, out);
+        // the API functions are bound again, not serialized
+        assertTrue(out.size() < 4096);
+
+        eval(mongoScope, "DBCollection.prototype.getName = function() {"
+                + " return 'replaced'; }; true;");
+        MongoScope restored = roundTrip(mongoScope);
+        assertEquals("replaced",
+                eval(restored, "new DBCollection().getName();"));
+        assertEquals("function",
+                eval(restored, "typeof DBCollection.prototype.getFullName;"));
+    }
+
+    @Test(expected = MongoScopeException.class)
+    public void testCompiledScopeRejected() throws IOException {
+        MongoScopeSnapshot.write(MongoRuntime.createMongoScope(),
+                new ByteArrayOutputStream());
+    }
+
+}
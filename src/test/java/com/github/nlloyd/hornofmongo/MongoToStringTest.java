@@ -69,4 +69,17 @@ public class MongoToStringTest {
         assertEquals("connection to 127.0.0.1:27017,127.0.0.1:27018", resultStr);
     }
 
+    @Test
+    public void testNewLessConstructorToString() {
+        // adaptors built without "new" get their scope and prototype on first
+        // property access
+        Object result = MongoRuntime.call(new MongoScriptAction(testScope,
+                "var oid = ObjectId('5254e23f87c0c4e4e2af6d5d');\n"
+                        + "[oid.str, oid.str, tojson(oid), NumberLong(5).toString(),\n"
+                        + "Timestamp(1, 2).t, BinData(0, 'AQID').hex()].join(' ');"));
+        assertEquals("5254e23f87c0c4e4e2af6d5d 5254e23f87c0c4e4e2af6d5d"
+                + " ObjectId(\"5254e23f87c0c4e4e2af6d5d\") NumberLong(5) 1 010203",
+                Context.toString(result));
+    }
+
 }
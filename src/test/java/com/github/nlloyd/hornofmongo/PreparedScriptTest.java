@@ -0,0 +1,95 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.mongodb.BasicDBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class PreparedScriptTest {
+
+    private MongoScope mongoScope;
+
+    @Before
+    public void setUp() {
+        mongoScope = MongoRuntime.createMongoScope();
+    }
+
+    @Test
+    public void testParametersBoundPerExecution() {
+        PreparedScript prepared = MongoRuntime.prepare(mongoScope, "sum",
+                "a + b;");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 0; i < 3; i++) {
+            parameters.put("a", i);
+            parameters.put("b", 10);
+            assertEquals(10.0 + i,
+                    Context.toNumber(prepared.execute(parameters)), 0.0);
+        }
+        assertFalse(mongoScope.has("a", mongoScope));
+        assertFalse(mongoScope.has("b", mongoScope));
+    }
+
+    @Test
+    public void testShadowedGlobalsRestored() {
+        MongoRuntime.call(new MongoScriptAction(mongoScope, "var cust = 'x';"));
+        PreparedScript prepared = MongoRuntime.prepare(mongoScope, "shadow",
+                "var seen = cust;\nvar extra = 1;\nseen;\n");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("cust", "acme");
+        parameters.put("extra", 2);
+        assertEquals("acme", Context.toString(prepared.execute(parameters)));
+        assertEquals("x", mongoScope.get("cust", mongoScope));
+        // declared with var by the script but bound as a parameter
+        assertFalse(mongoScope.has("extra", mongoScope));
+        assertTrue(mongoScope.has("seen", mongoScope));
+    }
+
+    @Test
+    public void testBSONParametersConverted() {
+        PreparedScript prepared = MongoRuntime.prepare(mongoScope, "bson",
+                "query.cust + ':' + query.tags.length + ':' + tojson(id);");
+        org.bson.types.ObjectId id = new org.bson.types.ObjectId();
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("query", new BasicDBObject("cust", "acme").append(
+                "tags", Arrays.asList("a", "b")));
+        parameters.put("id", id);
+        assertEquals("acme:2:ObjectId(\"" + id.toString() + "\")",
+                Context.toString(prepared.execute(parameters)));
+    }
+
+}
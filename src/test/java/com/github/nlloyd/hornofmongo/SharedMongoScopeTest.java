@@ -0,0 +1,106 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.util.PrintHandler;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class SharedMongoScopeTest {
+
+    private static MongoScope sharedScope;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sharedScope = MongoRuntime.createSharedMongoScope();
+    }
+
+    @Test
+    public void testChildScopesAreIsolated() {
+        MongoScope child1 = MongoRuntime.createMongoScope(sharedScope);
+        MongoScope child2 = MongoRuntime.createMongoScope(sharedScope);
+        assertTrue(child1.isChildScope());
+
+        MongoRuntime.call(new MongoScriptAction(child1, "var foo = 'bar';"));
+        assertEquals("bar", Context.toString(MongoRuntime
+                .call(new MongoScriptAction(child1, "foo;"))));
+        assertEquals("undefined", Context.toString(MongoRuntime
+                .call(new MongoScriptAction(child2, "typeof foo;"))));
+        assertFalse(ScriptableObject.hasProperty(sharedScope, "foo"));
+    }
+
+    @Test
+    public void testMongoJSApiAvailable() {
+        MongoScope child = MongoRuntime.createMongoScope(sharedScope);
+        Object result = MongoRuntime.call(new MongoScriptAction(child,
+                "tojson({a: NumberLong(5)});"));
+        assertEquals("{ \"a\" : NumberLong(5) }", Context.toString(result));
+    }
+
+    @Test
+    public void testAdaptorsBelongToChildScope() {
+        MongoScope child = MongoRuntime.createMongoScope(sharedScope);
+        Object oid = MongoRuntime.call(new MongoScriptAction(child,
+                "new ObjectId();"));
+        assertSame(child, ScriptableObject.getTopLevelScope((Scriptable) oid));
+
+        MongoRuntime.call(new MongoScriptAction(child, "var m = new Mongo();"));
+        assertEquals(1, child.countMongoConnections());
+        assertEquals(0, sharedScope.countMongoConnections());
+        child.cleanup();
+    }
+
+    @Test
+    public void testLibraryFunctionsUseChildGlobals() {
+        MongoScope child = MongoRuntime.createMongoScope(sharedScope);
+        final StringBuilder printed = new StringBuilder();
+        child.setPrintHandler(new PrintHandler() {
+            @Override
+            public void doPrint(Context cx, Scriptable s, Object[] args) {
+                printed.append(Context.toString(args[0]));
+            }
+        });
+        MongoRuntime.call(new MongoScriptAction(child, "printjson({a: 1});"));
+        assertEquals("{ \"a\" : 1 }", printed.toString());
+    }
+
+    @Test(expected = EvaluatorException.class)
+    public void testSharedScopeSealed() {
+        MongoRuntime.call(new MongoScriptAction(sharedScope, "var foo = 1;"));
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONDecoder;
+import com.github.nlloyd.hornofmongo.bson.HornOfMongoBSONEncoder;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class MongoTest {
+
+    private MongoScope testScope;
+    private Mongo mongo;
+
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        testScope = MongoRuntime.createMongoScope();
+        mongo = (Mongo) MongoRuntime.call(new MongoScriptAction(testScope,
+                "new Mongo('127.0.0.1:27017');"));
+    }
+
+    @After
+    public void tearDown() {
+        testScope.cleanup();
+    }
+
+    @Test
+    public void testCollectionCache() {
+        com.mongodb.DBCollection collection = mongo.getCollection("test.foo");
+        assertSame(collection, mongo.getCollection("test.foo"));
+        assertEquals("test", collection.getDB().getName());
+        assertEquals("foo", collection.getName());
+        assertSame(HornOfMongoBSONEncoder.FACTORY,
+                collection.getDBEncoderFactory());
+        assertSame(HornOfMongoBSONDecoder.FACTORY,
+                collection.getDBDecoderFactory());
+
+        // only the first dot separates the db name
+        com.mongodb.DBCollection nested = mongo.getCollection("test.foo.bar");
+        assertNotSame(collection, nested);
+        assertEquals("test.foo.bar", nested.getFullName());
+    }
+
+}
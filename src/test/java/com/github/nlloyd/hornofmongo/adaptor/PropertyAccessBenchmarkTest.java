@@ -0,0 +1,102 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.adaptor;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+
+/**
+ * Microbenchmark for property reads on adaptors (see
+ * {@link ScriptableMongoObject#get(String, org.mozilla.javascript.Scriptable)}),
+ * prints the cost of DBCollection._shortName and ObjectId.str reads from
+ * Java and the time of a JS loop reading both.
+ * 
+ * Only runs when the hornofmongo.benchmarks system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=PropertyAccessBenchmarkTest -Dhornofmongo.benchmarks=true
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class PropertyAccessBenchmarkTest {
+
+    private static final int READS = 10000000;
+
+    private static final int ROUNDS = 10;
+
+    private static final int WARMUP_ROUNDS = 6;
+
+    private static Object sink;
+
+    @Test
+    public void benchmarkPropertyAccess() {
+        assumeTrue(Boolean.getBoolean("hornofmongo.benchmarks"));
+        final MongoScope mongoScope = MongoRuntime.createMongoScope();
+        MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                DBCollection collection = new DBCollection(null, null, "foo",
+                        "test.foo");
+                ObjectId objectId = (ObjectId) cx.newObject(mongoScope,
+                        "ObjectId");
+                mongoScope.put("c", mongoScope, collection);
+                mongoScope.put("o", mongoScope, objectId);
+                Script loop = cx.compileString("var n = 0;\n"
+                        + "for (var i = 0; i < 2000000; i++) {\n"
+                        + "    if (c._shortName) n++;\n"
+                        + "    if (o.str) n++;\n" + "}\n" + "n;", "loop", 1,
+                        null);
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < READS; i++)
+                        sink = collection.get("_shortName", collection);
+                    long collectionDone = System.nanoTime();
+                    for (int i = 0; i < READS; i++)
+                        sink = objectId.get("str", objectId);
+                    long objectIdDone = System.nanoTime();
+                    loop.exec(cx, mongoScope);
+                    long loopDone = System.nanoTime();
+                    if (round >= WARMUP_ROUNDS)
+                        System.out.println(String.format(
+                                "DBCollection._shortName %.1f ns, "
+                                        + "ObjectId.str %.1f ns, "
+                                        + "JS loop (2M x 2 reads) %d ms",
+                                (collectionDone - start) / (double) READS,
+                                (objectIdDone - collectionDone)
+                                        / (double) READS,
+                                (loopDone - objectIdDone) / 1000000));
+                }
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.typedarrays.NativeFloat64Array;
+import org.mozilla.javascript.typedarrays.NativeInt32Array;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.CallMethodAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.BSONToJSConverter;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSDecoderTest {
+
+    private MongoScope testScope;
+
+    private byte[] testBytes;
+
+    @Before
+    public void setUp() {
+        testScope = MongoRuntime.createMongoScope();
+        BasicDBObject testDocument = new BasicDBObject("_id", new ObjectId())
+                .append("string", "acme")
+                .append("int", 3)
+                .append("long", 12345678901L)
+                .append("double", 1.5)
+                .append("boolean", true)
+                .append("null", null)
+                .append("date", new Date(1381285073000L))
+                .append("regex", Pattern.compile("^a.*", Pattern.CASE_INSENSITIVE))
+                .append("timestamp", new BSONTimestamp(1381285073, 7))
+                .append("minKey", new MinKey())
+                .append("maxKey", new MaxKey())
+                .append("bytes", new byte[] { 1, 2, 3 })
+                .append("binary", new Binary((byte) 0x80, new byte[] { 4, 5 }))
+                .append("uuid", UUID.randomUUID())
+                .append("code", new Code("function() {}"))
+                .append("ref", new DBRef("other", new ObjectId()))
+                .append("array",
+                        Arrays.asList(1, "two", new BasicDBObject("three", 3)))
+                .append("nested",
+                        new BasicDBObject("a", new BasicDBObject("b", "c")));
+        testBytes = new BasicBSONEncoder().encode(testDocument);
+    }
+
+    @Test
+    public void testDecodeMatchesConvertedDBObject() {
+        String converted = tojson(MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                DBObject decoded = new HornOfMongoBSONDecoder().decode(
+                        testBytes, (DBCollection) null);
+                return BSONizer.convertBSONtoJS(cx, mongoScope, decoded);
+            }
+        }));
+
+        Object decoded = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return new HornOfMongoJSDecoder(mongoScope).decode(testBytes, (DBCollection) null);
+            }
+        });
+        assertTrue(decoded instanceof ScriptableDBObject);
+        assertEquals(converted,
+                tojson(((ScriptableDBObject) decoded).getScriptable()));
+
+        // enters a Context of its own if none is entered
+        DBObject decodedOutside = new HornOfMongoJSDecoder(testScope).decode(
+                testBytes, (DBCollection) null);
+        assertEquals(converted,
+                tojson(((ScriptableDBObject) decodedOutside).getScriptable()));
+    }
+
+    @Test
+    public void testRegisteredConverters() {
+        BSONizer.registerBSONConverter(String.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return ((String) bsonObject).toUpperCase();
+            }
+        });
+        try {
+            String converted = tojson(MongoRuntime.call(new MongoAction(
+                    testScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    DBObject decoded = new HornOfMongoBSONDecoder().decode(
+                            testBytes, (DBCollection) null);
+                    return BSONizer.convertBSONtoJS(cx, mongoScope, decoded);
+                }
+            }));
+            assertTrue(converted.contains("\"ACME\""));
+
+            ScriptableDBObject decoded = (ScriptableDBObject) new HornOfMongoJSDecoder(
+                    testScope).decode(testBytes, (DBCollection) null);
+            assertEquals("ACME", decoded.get("string"));
+            assertEquals(converted, tojson(decoded.getScriptable()));
+        } finally {
+            assertTrue(BSONizer.unregisterBSONConverter(String.class));
+        }
+        ScriptableDBObject decoded = (ScriptableDBObject) new HornOfMongoJSDecoder(
+                testScope).decode(testBytes, (DBCollection) null);
+        assertEquals("acme", decoded.get("string"));
+    }
+
+    @Test
+    public void testScriptableDBObject() {
+        ScriptableDBObject decoded = (ScriptableDBObject) new HornOfMongoJSDecoder(
+                testScope).decode(testBytes, (DBCollection) null);
+        assertEquals("acme", decoded.get("string"));
+        assertTrue(decoded.containsField("nested"));
+        assertTrue(decoded.keySet().contains("_id"));
+        decoded.put("added", "value");
+        Scriptable jsObject = decoded.getScriptable();
+        assertEquals("value", jsObject.get("added", jsObject));
+        assertEquals("value", decoded.removeField("added"));
+        assertEquals(null, decoded.get("added"));
+    }
+
+    @Test
+    public void testTypedArrayDecoding() {
+        final byte[] bytes = new BasicBSONEncoder().encode(new BasicDBObject(
+                "samples", Arrays.asList(0.5, 1.5, 2.5))
+                .append("counts", Arrays.asList(1, 2, 3))
+                .append("mixed", Arrays.asList(1, 2.5, "three")));
+        testScope.setTypedArrayDecoding(true);
+        Scriptable decoded = ((ScriptableDBObject) new HornOfMongoJSDecoder(
+                testScope).decode(bytes, (DBCollection) null)).getScriptable();
+        assertTrue(decoded.get("samples", decoded) instanceof NativeFloat64Array);
+        assertTrue(decoded.get("counts", decoded) instanceof NativeInt32Array);
+        NativeArray mixed = (NativeArray) decoded.get("mixed", decoded);
+        assertEquals(Double.valueOf(1), mixed.get(0, mixed));
+
+        String converted = tojson(MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                DBObject bson = new HornOfMongoBSONDecoder().decode(bytes,
+                        (DBCollection) null);
+                return BSONizer.convertBSONtoJS(cx, mongoScope, bson);
+            }
+        }));
+        assertEquals(converted, tojson(decoded));
+    }
+
+    private String tojson(Object jsObject) {
+        return Context.toString(MongoRuntime.call(new CallMethodAction(
+                testScope, testScope, "tojson", new Object[] { jsObject })));
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.github.nlloyd.hornofmongo.util.JSToBSONConverter;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class HornOfMongoJSEncoderTest {
+
+    private MongoScope testScope;
+
+    private Scriptable testObject;
+
+    @Before
+    public void setUp() {
+        testScope = MongoRuntime.createMongoScope();
+        testObject = (Scriptable) MongoRuntime.call(new MongoScriptAction(
+                testScope, "testObject", "var testObject = {\n"
+                        + "    _id: ObjectId(), string: 'acme', number: 3,\n"
+                        + "    long: NumberLong(12345678901), int: NumberInt(4),\n"
+                        + "    boolean: true, nothing: null, undef: undefined,\n"
+                        + "    date: new Date(1381285073000),\n"
+                        + "    utc: {$date: '2013-10-09T02:17:53.000Z'},\n"
+                        + "    notUtc: {$date: 'yesterday'},\n"
+                        + "    regex: /^a.*/i, timestamp: Timestamp(1381285073, 7),\n"
+                        + "    minKey: MinKey, maxKey: MaxKey,\n"
+                        + "    binary: BinData(0, 'AQID'),\n"
+                        + "    ref: DBRef('other', ObjectId()),\n"
+                        + "    array: [1, 'two', {three: 3}, [4]],\n"
+                        + "    nested: {a: {b: 'c' + 'd'}}\n"
+                        + "};\n"
+                        + "testObject;\n"));
+    }
+
+    @Test
+    public void testEncodeMatchesConvertedDBObject() {
+        byte[] converted = (byte[]) MongoRuntime.call(new MongoAction(
+                testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return new HornOfMongoBSONEncoder().encode((BSONObject) BSONizer
+                        .convertJStoBSON(testObject, true));
+            }
+        });
+        byte[] encoded = (byte[]) MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return new HornOfMongoJSEncoder()
+                        .encode(new ScriptableDBObject(testObject));
+            }
+        });
+        assertArrayEquals(converted, encoded);
+    }
+
+    @Test
+    public void testRegisteredConverters() {
+        BSONizer.registerJSConverter(String.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                return "js:" + jsObject;
+            }
+        });
+        try {
+            testEncodeMatchesConvertedDBObject();
+            byte[] encoded = (byte[]) MongoRuntime.call(new MongoAction(
+                    testScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return new HornOfMongoJSEncoder()
+                            .encode(new ScriptableDBObject(testObject));
+                }
+            });
+            assertEquals("js:acme",
+                    new BasicBSONDecoder().readObject(encoded).get("string"));
+        } finally {
+            assertTrue(BSONizer.unregisterJSConverter(String.class));
+        }
+    }
+
+    @Test
+    public void testDriverValuesAreConverted() {
+        ScriptableDBObject wrapped = new ScriptableDBObject(testObject);
+        wrapped.put("_id", new org.bson.types.ObjectId());
+        assertTrue(ScriptableObject.getProperty(testObject, "_id") instanceof ObjectId);
+
+        ScriptableDBObject array = new ScriptableDBObject(
+                (Scriptable) ScriptableObject.getProperty(testObject, "array"));
+        assertEquals("two", array.get("1"));
+        assertTrue(array.containsField("3"));
+        assertTrue(!array.containsField("4"));
+    }
+
+    @Test
+    public void testReadOnlyKeepsDriverValuesApart() {
+        final Scriptable plain = (Scriptable) MongoRuntime
+                .call(new MongoScriptAction(testScope, "plain",
+                        "var plain = {a: 1}; plain;"));
+        final ScriptableDBObject wrapped = new ScriptableDBObject(plain, true);
+        org.bson.types.ObjectId id = new org.bson.types.ObjectId();
+        wrapped.put("_id", id);
+        assertFalse(ScriptableObject.hasProperty(plain, "_id"));
+        assertEquals(id, wrapped.get("_id"));
+        assertTrue(wrapped.containsField("_id"));
+        assertTrue(wrapped.keySet().contains("_id"));
+
+        byte[] encoded = (byte[]) MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return new HornOfMongoJSEncoder().encode(wrapped);
+            }
+        });
+        BSONObject decoded = new BasicBSONDecoder().readObject(encoded);
+        assertEquals(id, decoded.get("_id"));
+        assertEquals(1.0, decoded.get("a"));
+    }
+
+}
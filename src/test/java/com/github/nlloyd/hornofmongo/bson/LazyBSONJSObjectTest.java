@@ -0,0 +1,178 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.CallMethodAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.util.BSONToJSConverter;
+import com.github.nlloyd.hornofmongo.util.BSONizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class LazyBSONJSObjectTest {
+
+    private MongoScope testScope;
+
+    private byte[] testBytes;
+
+    @Before
+    public void setUp() {
+        testScope = MongoRuntime.createMongoScope();
+        BasicDBObject testDocument = new BasicDBObject("_id", new ObjectId())
+                .append("string", "acme")
+                .append("int", 3)
+                .append("long", 12345678901L)
+                .append("double", 1.5)
+                .append("boolean", true)
+                .append("null", null)
+                .append("date", new Date(1381285073000L))
+                .append("regex", Pattern.compile("^a.*", Pattern.CASE_INSENSITIVE))
+                .append("timestamp", new BSONTimestamp(1381285073, 7))
+                .append("minKey", new MinKey())
+                .append("maxKey", new MaxKey())
+                .append("bytes", new byte[] { 1, 2, 3 })
+                .append("binary", new Binary((byte) 0x80, new byte[] { 4, 5 }))
+                .append("uuid", UUID.randomUUID())
+                .append("code", new Code("function() {}"))
+                .append("ref", new DBRef("other", new ObjectId()))
+                .append("array",
+                        Arrays.asList(1, "two", new BasicDBObject("three", 3)))
+                .append("nested",
+                        new BasicDBObject("a", new BasicDBObject("b", "c")))
+                .append("0", "zero");
+        testBytes = new BasicBSONEncoder().encode(testDocument);
+    }
+
+    @Test
+    public void testFieldsDecodedOnAccess() {
+        LazyBSONJSObject lazy = decode();
+        assertEquals("acme", ScriptableObject.getProperty(lazy, "string"));
+        assertEquals("zero", ScriptableObject.getProperty(lazy, 0));
+        assertTrue(ScriptableObject.hasProperty(lazy, "nested"));
+        assertFalse(ScriptableObject.hasProperty(lazy, "missing"));
+        Object nested = ScriptableObject.getProperty(lazy, "nested");
+        assertTrue(nested instanceof LazyBSONJSObject);
+        assertFalse(lazy.isMaterialized());
+        assertFalse(((LazyBSONJSObject) nested).isMaterialized());
+
+        // mutation decodes the rest of the document
+        ScriptableObject.putProperty(lazy, "added", "value");
+        assertTrue(lazy.isMaterialized());
+        assertEquals("value", ScriptableObject.getProperty(lazy, "added"));
+        assertEquals(Boolean.TRUE, ScriptableObject.getProperty(lazy, "boolean"));
+    }
+
+    @Test
+    public void testMaterializedMatchesConvertedDBObject() {
+        String converted = tojson(MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                DBObject decoded = new HornOfMongoBSONDecoder().decode(
+                        testBytes, (DBCollection) null);
+                return BSONizer.convertBSONtoJS(cx, mongoScope, decoded);
+            }
+        }));
+
+        LazyBSONJSObject lazy = decode();
+        // fields read first still enumerate in document order
+        ScriptableObject.getProperty(lazy, "nested");
+        ScriptableObject.getProperty(lazy, "string");
+        assertEquals(converted, tojson(lazy));
+        assertTrue(lazy.isMaterialized());
+    }
+
+    @Test
+    public void testRegisteredConverters() {
+        LazyBSONJSObject lazy = decode();
+        BSONizer.registerBSONConverter(String.class, new BSONToJSConverter() {
+            @Override
+            public Object convert(Context context, MongoScope mongoScope,
+                    Object bsonObject) {
+                return ((String) bsonObject).toUpperCase();
+            }
+        });
+        try {
+            // documents are left to BSONizer
+            DBObject decoded = new LazyBSONJSDecoder(testScope).decode(
+                    testBytes, (DBCollection) null);
+            assertFalse(decoded instanceof ScriptableDBObject);
+            Scriptable converted = (Scriptable) BSONizer.convertBSONtoJS(
+                    testScope, decoded);
+            assertEquals("ACME", ScriptableObject.getProperty(converted,
+                    "string"));
+
+            // so are the fields of documents decoded before
+            assertEquals("ACME", ScriptableObject.getProperty(lazy, "string"));
+            Object nested = ScriptableObject.getProperty(lazy, "nested");
+            assertFalse(nested instanceof LazyBSONJSObject);
+            assertEquals("C", ScriptableObject.getProperty(
+                    (Scriptable) ScriptableObject.getProperty(
+                            (Scriptable) nested, "a"), "b"));
+        } finally {
+            assertTrue(BSONizer.unregisterBSONConverter(String.class));
+        }
+        assertEquals("acme", ScriptableObject.getProperty(decode(), "string"));
+    }
+
+    private LazyBSONJSObject decode() {
+        DBObject decoded = new LazyBSONJSDecoder(testScope).decode(testBytes,
+                (DBCollection) null);
+        return (LazyBSONJSObject) ((ScriptableDBObject) decoded)
+                .getScriptable();
+    }
+
+    private String tojson(Object jsObject) {
+        return Context.toString(MongoRuntime.call(new CallMethodAction(
+                testScope, testScope, "tojson", new Object[] { jsObject })));
+    }
+
+}
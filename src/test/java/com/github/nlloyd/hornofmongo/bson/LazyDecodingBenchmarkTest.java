@@ -0,0 +1,108 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.bson;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+
+/**
+ * Benchmark of {@link HornOfMongoJSDecoder} against {@link LazyBSONJSDecoder}
+ * for a wide document of which only 3 fields are read, prints the cost per
+ * document for both.
+ * 
+ * Only runs when the hornofmongo.benchmarks system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=LazyDecodingBenchmarkTest -Dhornofmongo.benchmarks=true
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class LazyDecodingBenchmarkTest {
+
+    private static final int FIELDS = 200;
+
+    private static final int DOCUMENTS = 20000;
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmarkFewFieldsRead() {
+        assumeTrue(Boolean.getBoolean("hornofmongo.benchmarks"));
+        final MongoScope mongoScope = MongoRuntime.createMongoScope();
+        BasicDBObject document = new BasicDBObject("_id", new ObjectId());
+        for (int i = 0; i < FIELDS; i++) {
+            if (i % 3 == 0)
+                document.append("f" + i, "value" + i);
+            else if (i % 3 == 1)
+                document.append("f" + i, i * 1.5);
+            else
+                document.append("f" + i,
+                        new BasicDBObject("x", i).append("y", "z"));
+        }
+        final byte[] bytes = new BasicBSONEncoder().encode(document);
+
+        MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                long eager = 0;
+                long lazy = 0;
+                // the last round is reported, the others warm up
+                for (int round = 0; round < ROUNDS; round++) {
+                    eager = decode(new HornOfMongoJSDecoder(mongoScope), bytes);
+                    lazy = decode(new LazyBSONJSDecoder(mongoScope), bytes);
+                }
+                System.out.println("eager: " + (eager / DOCUMENTS)
+                        + " ns/document, lazy: " + (lazy / DOCUMENTS)
+                        + " ns/document");
+                return null;
+            }
+        });
+    }
+
+    private long decode(DBDecoder decoder, byte[] bytes) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Scriptable jsObject = ((ScriptableDBObject) decoder.decode(bytes,
+                    (DBCollection) null)).getScriptable();
+            ScriptableObject.getProperty(jsObject, "_id");
+            ScriptableObject.getProperty(jsObject, "f3");
+            ScriptableObject.getProperty(jsObject, "f100");
+        }
+        return System.nanoTime() - begin;
+    }
+
+}
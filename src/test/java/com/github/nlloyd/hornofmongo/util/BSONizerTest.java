@@ -0,0 +1,573 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.WrappedException;
+import org.mozilla.javascript.typedarrays.NativeFloat64Array;
+import org.mozilla.javascript.typedarrays.NativeInt32Array;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.CallMethodAction;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.github.nlloyd.hornofmongo.action.MongoScriptAction;
+import com.github.nlloyd.hornofmongo.adaptor.BinData;
+import com.github.nlloyd.hornofmongo.adaptor.NumberLong;
+import com.github.nlloyd.hornofmongo.adaptor.ObjectId;
+import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
+import com.github.nlloyd.hornofmongo.exception.MongoScopeException;
+import com.mongodb.BasicDBObject;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class BSONizerTest {
+
+    private MongoScope testScope;
+
+    private BasicDBObject testDocument;
+
+    @Before
+    public void setUp() {
+        testScope = MongoRuntime.createMongoScope();
+        testDocument = new BasicDBObject("_id",
+                new org.bson.types.ObjectId("5254c0d1e4b0a1ba19a2f0a1"))
+                .append("name", "acme").append("count", 3)
+                .append("total", 12345678901L)
+                .append("created", new Date(1381285073000L))
+                .append("tags", Arrays.asList("a", "b"))
+                .append("nested", new BasicDBObject("0", "zero"));
+    }
+
+    @Test
+    public void testConvertBSONtoJS() {
+        Scriptable jsDocument = (Scriptable) BSONizer.convertBSONtoJS(
+                testScope, testDocument);
+        assertTrue(jsDocument.get("_id", jsDocument) instanceof ObjectId);
+        assertEquals("acme", jsDocument.get("name", jsDocument));
+        assertEquals(3.0, jsDocument.get("count", jsDocument));
+        assertEquals(12345678901L,
+                ((NumberLong) jsDocument.get("total", jsDocument))
+                        .getRealLong());
+        NativeArray tags = (NativeArray) jsDocument.get("tags", jsDocument);
+        assertEquals(2, tags.getLength());
+        assertEquals("b", tags.get(1, tags));
+        Scriptable nested = (Scriptable) jsDocument.get("nested", jsDocument);
+        assertEquals("zero", nested.get(0, nested));
+    }
+
+    @Test
+    public void testConvertWithinEnteredContext() {
+        Object outside = BSONizer.convertBSONtoJS(testScope, testDocument);
+        Object inside = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return BSONizer.convertBSONtoJS(cx, mongoScope, testDocument);
+            }
+        });
+        assertEquals(tojson(outside), tojson(inside));
+    }
+
+    @Test
+    public void testRegisteredConverters() {
+        BSONizer.registerBSONConverter(BigDecimal.class,
+                new BSONToJSConverter() {
+                    @Override
+                    public Object convert(Context context,
+                            MongoScope mongoScope, Object bsonObject) {
+                        return ((BigDecimal) bsonObject).doubleValue();
+                    }
+                });
+        BSONizer.registerJSConverter(BigDecimal.class, new JSToBSONConverter() {
+            @Override
+            public Object convert(Object jsObject, boolean isJsObj,
+                    String dateFormat) {
+                return jsObject.toString();
+            }
+        });
+        try {
+            Scriptable jsDocument = (Scriptable) BSONizer.convertBSONtoJS(
+                    testScope, new BasicDBObject("price", new BigDecimal("1.5")));
+            assertEquals(1.5, jsDocument.get("price", jsDocument));
+            assertEquals("2.5",
+                    BSONizer.convertJStoBSON(new BigDecimal("2.5"), true));
+        } finally {
+            assertTrue(BSONizer.unregisterBSONConverter(BigDecimal.class));
+            assertTrue(BSONizer.unregisterJSConverter(BigDecimal.class));
+        }
+        BigDecimal price = new BigDecimal("1.5");
+        assertSame(price, BSONizer.convertBSONtoJS(testScope, price));
+        assertFalse(BSONizer.unregisterJSConverter(BigDecimal.class));
+    }
+
+    @Test
+    public void testDeeplyNestedDocuments() {
+        BasicDBObject deep = new BasicDBObject("leaf", "value");
+        for (int i = 0; i < 400; i++)
+            deep = new BasicDBObject("child", Arrays.asList(deep));
+        final Object bson = deep;
+        Object converted = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                Object js = BSONizer.convertBSONtoJS(cx, mongoScope, bson);
+                return BSONizer.convertJStoBSON(js, true);
+            }
+        });
+        assertEquals(bson, converted);
+    }
+
+    @Test
+    public void testArrays() {
+        List<Object> samples = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++)
+            samples.add(i * 0.5);
+        List<Object> mixed = new ArrayList<Object>(Arrays.asList("a", 1.5,
+                null, new BasicDBObject("b", Arrays.asList(2.5)), true,
+                new org.bson.types.ObjectId("5254c0d1e4b0a1ba19a2f0a1"),
+                "c"));
+        final BasicDBObject bson = new BasicDBObject("samples", samples)
+                .append("mixed", mixed)
+                .append("linked", new LinkedList<Object>(mixed));
+        Object converted = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                Object js = BSONizer.convertBSONtoJS(cx, mongoScope, bson);
+                return BSONizer.convertJStoBSON(js, true);
+            }
+        });
+        bson.put("linked", mixed);
+        assertEquals(bson, converted);
+    }
+
+    @Test
+    public void testTypedArrayDecoding() {
+        final List<Object> samples = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++)
+            samples.add(i * 0.5);
+        final BasicDBObject bson = new BasicDBObject("samples", samples)
+                .append("counts", Arrays.asList(1, 2, 3))
+                .append("mixed", Arrays.asList(1.5, "two"))
+                .append("empty", new ArrayList<Object>());
+        testScope.setTypedArrayDecoding(true);
+        MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                Scriptable js = (Scriptable) BSONizer.convertBSONtoJS(cx,
+                        mongoScope, bson);
+                assertTrue(js.get("samples", js) instanceof NativeFloat64Array);
+                assertTrue(js.get("counts", js) instanceof NativeInt32Array);
+                assertTrue(js.get("mixed", js) instanceof NativeArray);
+                assertTrue(js.get("empty", js) instanceof NativeArray);
+                assertTrue(BSONizer.convertBSONtoJS(cx, mongoScope, samples)
+                        instanceof NativeFloat64Array);
+
+                // typed arrays convert back to the same BSON arrays
+                assertEquals(bson, BSONizer.convertJStoBSON(js, true));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testShapeCache() {
+        ShapeCache shapeCache = testScope.getShapeCache();
+        shapeCache.clear();
+        final BasicDBObject first = new BasicDBObject("a", 1.5).append("0",
+                "zero").append("nested", new BasicDBObject("b", "c"));
+        final BasicDBObject second = new BasicDBObject("a", 2.5).append("0",
+                "one").append("nested", new BasicDBObject("b", "d"));
+        assertEquals(
+                "{ \"a\" : 1.5, \"0\" : \"zero\", \"nested\" : { \"b\" : \"c\" } }",
+                tojson(BSONizer.convertBSONtoJS(testScope, first)));
+        assertEquals(0, shapeCache.getHits());
+        assertEquals(2, shapeCache.getMisses());
+        assertEquals(4, shapeCache.getShapeCount());
+
+        Scriptable converted = (Scriptable) BSONizer.convertBSONtoJS(
+                testScope, second);
+        assertEquals(2, shapeCache.getHits());
+        assertEquals(0.5, shapeCache.getHitRate(), 0);
+        assertEquals("one", converted.get(0, converted));
+        assertEquals(second, BSONizer.convertJStoBSON(converted, true));
+
+        // documents with other fields are still converted once full
+        shapeCache.setMaxShapes(4);
+        converted = (Scriptable) BSONizer.convertBSONtoJS(testScope,
+                new BasicDBObject("a", 3.5).append("other", "value"));
+        assertEquals("value", converted.get("other", converted));
+        assertEquals(4, shapeCache.getShapeCount());
+        assertEquals(3, shapeCache.getMisses());
+
+        shapeCache.clear();
+        shapeCache.setMaxShapes(ShapeCache.DEFAULT_MAX_SHAPES);
+        assertEquals(0, shapeCache.getShapeCount());
+        assertEquals(0, shapeCache.getHitRate(), 0);
+    }
+
+    @Test
+    public void testShapeCacheInheritedNames() {
+        testScope.getShapeCache().clear();
+        final BasicDBObject bson = new BasicDBObject("a", 1.5).append("b",
+                "c");
+        Object checks = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                cx.evaluateString(testScope, "Object.prototype.other = 1;",
+                        "other", 1, null);
+                Scriptable converted = (Scriptable) BSONizer.convertBSONtoJS(
+                        testScope, bson);
+                assertEquals(1.5, converted.get("a", converted));
+                try {
+                    // the shape of bson is known, a setter defined afterwards
+                    // must still see the inherited name, even if
+                    // Object.prototype holds as many properties as before
+                    cx.evaluateString(testScope,
+                            "delete Object.prototype.other;"
+                                    + " Object.prototype.__defineSetter__('a',"
+                                    + " function(v) { this.seen = v; });",
+                            "setter", 1, null);
+                    converted = (Scriptable) BSONizer.convertBSONtoJS(
+                            testScope, bson);
+                    testScope.put("doc", testScope, converted);
+                    return cx.evaluateString(testScope,
+                            "[doc.hasOwnProperty('a'), doc.seen, doc.b]",
+                            "checks", 1, null);
+                } finally {
+                    cx.evaluateString(testScope, "delete Object.prototype.a;",
+                            "cleanup", 1, null);
+                }
+            }
+        });
+        assertEquals(Arrays.asList(false, 1.5, "c"), checks);
+        assertEquals(1, testScope.getShapeCache().getHits());
+    }
+
+    @Test
+    public void testShapeCodecs() {
+        final ShapeCache shapeCache = testScope.getShapeCache();
+        shapeCache.clear();
+        shapeCache.setCodecThreshold(2);
+        try {
+            MongoRuntime.call(new MongoAction(testScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    List<Object> converted = new ArrayList<Object>();
+                    for (int i = 0; i < 4; i++) {
+                        BasicDBObject bson = new BasicDBObject("_id", i)
+                                .append("0", "zero")
+                                .append("tags", Arrays.asList("a", "b"))
+                                .append("nested", new BasicDBObject("n", i));
+                        Object js = BSONizer.convertBSONtoJS(cx, mongoScope,
+                                "test.etl", bson);
+                        assertEquals(tojson(BSONizer.convertBSONtoJS(cx,
+                                mongoScope, bson)), tojson(js));
+                        converted.add(js);
+                    }
+                    assertEquals(1, shapeCache.getCodecCount());
+                    assertEquals(2, shapeCache.getCodecHits());
+
+                    // counts are per namespace, the shape is not hot yet in
+                    // another one
+                    BSONizer.convertBSONtoJS(cx, mongoScope, "test.other",
+                            new BasicDBObject("_id", 4).append("0", "zero")
+                                    .append("tags", Arrays.asList("a"))
+                                    .append("nested", new BasicDBObject()));
+                    assertEquals(1, shapeCache.getCodecCount());
+
+                    // other shapes are converted generically
+                    BasicDBObject other = new BasicDBObject("_id", 5)
+                            .append("other", "value");
+                    assertEquals(
+                            "{ \"_id\" : 5, \"other\" : \"value\" }",
+                            tojson(BSONizer.convertBSONtoJS(cx, mongoScope,
+                                    "test.etl", other)));
+                    assertEquals(1, shapeCache.getCodecMisses());
+
+                    for (Object js : converted) {
+                        Object bson = BSONizer.convertJStoBSON(mongoScope,
+                                "test.etl", js, true);
+                        assertEquals(BSONizer.convertJStoBSON(js, true), bson);
+                    }
+                    assertEquals(6, shapeCache.getCodecHits());
+                    return null;
+                }
+            });
+        } finally {
+            shapeCache.clear();
+            shapeCache.setCodecThreshold(ShapeCache.DEFAULT_CODEC_THRESHOLD);
+        }
+    }
+
+    @Test
+    public void testShapeCodecsSeeRegisteredConverters() {
+        final ShapeCache shapeCache = testScope.getShapeCache();
+        shapeCache.clear();
+        shapeCache.setCodecThreshold(1);
+        try {
+            MongoRuntime.call(new MongoAction(testScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    BasicDBObject bson = new BasicDBObject("_id", 1.0).append(
+                            "label", "x");
+                    // the first document installs the codec, the second
+                    // resolves its field converters
+                    BSONizer.convertBSONtoJS(cx, mongoScope, "test.codec", bson);
+                    Scriptable js = (Scriptable) BSONizer.convertBSONtoJS(cx,
+                            mongoScope, "test.codec", bson);
+                    assertEquals("x", js.get("label", js));
+                    assertEquals(bson, BSONizer.convertJStoBSON(mongoScope,
+                            "test.codec", js, true));
+                    assertEquals(2, shapeCache.getCodecHits());
+
+                    BSONizer.registerBSONConverter(String.class,
+                            new BSONToJSConverter() {
+                                @Override
+                                public Object convert(Context context,
+                                        MongoScope mongoScope,
+                                        Object bsonObject) {
+                                    return ((String) bsonObject).toUpperCase();
+                                }
+                            });
+                    BSONizer.registerJSConverter(String.class,
+                            new JSToBSONConverter() {
+                                @Override
+                                public Object convert(Object jsObject,
+                                        boolean isJsObj, String dateFormat) {
+                                    return "js:" + jsObject;
+                                }
+                            });
+                    try {
+                        js = (Scriptable) BSONizer.convertBSONtoJS(cx,
+                                mongoScope, "test.codec", bson);
+                        assertEquals("X", js.get("label", js));
+                        assertEquals(
+                                new BasicDBObject("_id", 1.0).append("label",
+                                        "js:X"), BSONizer.convertJStoBSON(
+                                        mongoScope, "test.codec", js, true));
+                        assertEquals(4, shapeCache.getCodecHits());
+                    } finally {
+                        BSONizer.unregisterBSONConverter(String.class);
+                        BSONizer.unregisterJSConverter(String.class);
+                    }
+                    js = (Scriptable) BSONizer.convertBSONtoJS(cx, mongoScope,
+                            "test.codec", bson);
+                    assertEquals("x", js.get("label", js));
+                    return null;
+                }
+            });
+        } finally {
+            shapeCache.clear();
+            shapeCache.setCodecThreshold(ShapeCache.DEFAULT_CODEC_THRESHOLD);
+        }
+    }
+
+    @Test
+    public void testSpecialDates() {
+        final Object dates = MongoRuntime.call(new MongoScriptAction(
+                testScope, "dates", "var dates = [{$date: '2013-10-09T04:17:53+02:00'},\n"
+                        + "{$date: 1381285073000}, {$date: NumberLong(1381285073000)},\n"
+                        + "{$date: {$numberLong: '1381285073000'}}, {$date: 'yesterday'}];\n"
+                        + "dates;\n"));
+        List<?> converted = (List<?>) MongoRuntime.call(new MongoAction(
+                testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return BSONizer.convertJStoBSON(dates, true);
+            }
+        });
+        Date expected = new Date(1381285073000L);
+        assertEquals(Arrays.asList(expected, expected, expected, expected,
+                new BasicDBObject("$date", "yesterday")), converted);
+    }
+
+    @Test
+    public void testAdaptorFactories() {
+        final org.bson.types.ObjectId oid = new org.bson.types.ObjectId();
+        final BasicDBObject bson = new BasicDBObject("_id", oid)
+                .append("count", 5000000000L)
+                .append("ts", new BSONTimestamp(1381285073, 7))
+                .append("bin", new byte[] { 1, 2, 3 });
+        Object checks = MongoRuntime.call(new MongoAction(testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                Object doc = BSONizer.convertBSONtoJS(testScope, bson);
+                ObjectId jsOid = (ObjectId) ((Scriptable) doc).get("_id",
+                        (Scriptable) doc);
+                // bound to the decoded id, no other id generated
+                assertSame(oid, jsOid.getRealObjectId());
+                testScope.put("doc", testScope, doc);
+                return cx.evaluateString(testScope, "[doc._id instanceof ObjectId,\n"
+                        + "doc._id.str, doc.count instanceof NumberLong,\n"
+                        + "doc.count.floatApprox, doc.count.toString(),\n"
+                        + "doc.ts instanceof Timestamp, doc.ts.t, doc.ts.i,\n"
+                        + "doc.bin instanceof BinData, doc.bin.len, doc.bin.hex()]",
+                        "checks", 1, null);
+            }
+        });
+        assertEquals(Arrays.asList(true, oid.toString(), true, 5000000000L,
+                "NumberLong(\"5000000000\")", true, 1381285073L, 7L, true, 3,
+                "010203"), checks);
+    }
+
+    @Test
+    public void testBinDataRawBytes() {
+        final byte[] payload = new byte[] { 1, 2, 3, (byte) 0xff };
+        BinData binData = (BinData) MongoRuntime.call(new MongoAction(
+                testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return BSONizer.convertBSONtoJS(testScope, payload);
+            }
+        });
+        // wrapped, not copied
+        assertSame(payload, binData.getDataBytes());
+        assertEquals(0, binData.getType());
+        assertEquals("AQID/w==", binData.base64());
+        assertEquals("010203ff", binData.hex());
+        assertEquals("BinData(0,\"AQID/w==\")", binData.toString());
+
+        // user defined subtypes survive the round trip
+        BinData userBinData = (BinData) MongoRuntime.call(new MongoAction(
+                testScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                return BSONizer.convertBSONtoJS(testScope, new Binary(
+                        (byte) 0x80, payload));
+            }
+        });
+        assertEquals(0x80, userBinData.getType());
+        Binary binary = (Binary) BSONizer.convertJStoBSON(userBinData, true);
+        assertEquals((byte) 0x80, binary.getType());
+        assertTrue(Arrays.equals(payload, binary.getData()));
+
+        Object helpers = MongoRuntime.call(new MongoScriptAction(testScope,
+                "helpers", "[HexData(0, '010203ff').base64(),\n"
+                        + "MD5('0123456789abcdef0123456789abcdef').len,\n"
+                        + "UUID('0123456789abcdef0123456789abcdef').hex(),\n"
+                        + "BinData(0, 'AQID/w==').hex()];\n"));
+        assertEquals(Arrays.asList("AQID/w==", 16,
+                "0123456789abcdef0123456789abcdef", "010203ff"), helpers);
+    }
+
+    @Test
+    public void testConcurrentTimestamps() throws Exception {
+        final int threadCount = 8;
+        final int perThread = 20000;
+        final long[][] generated = new long[threadCount][perThread];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final long[] values = generated[t];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Timestamp timestamp = new Timestamp();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        BSONTimestamp bsonTimestamp = (BSONTimestamp) BSONizer
+                                .convertJStoBSON(timestamp, true);
+                        values[i] = ((long) bsonTimestamp.getTime() << 32)
+                                | (bsonTimestamp.getInc() & 0xFFFFFFFFL);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        Set<Long> unique = new HashSet<Long>();
+        for (long[] values : generated) {
+            for (int i = 0; i < perThread; i++) {
+                assertTrue(unique.add(values[i]));
+                // monotonic on each thread
+                if (i > 0)
+                    assertTrue(values[i] > values[i - 1]);
+            }
+        }
+        assertEquals(threadCount * perThread, unique.size());
+    }
+
+    @Test
+    public void testConversionLimits() {
+        final Object cyclic = MongoRuntime.call(new MongoScriptAction(
+                testScope, "cyclic", "var cyclic = {a: 1};\n"
+                        + "cyclic.self = cyclic;\ncyclic;\n"));
+        try {
+            MongoRuntime.call(new MongoAction(testScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    return BSONizer.convertJStoBSON(cyclic, true);
+                }
+            });
+            fail("cyclic object converted");
+        } catch (WrappedException e) {
+            assertTrue(e.getWrappedException() instanceof MongoScopeException);
+        }
+
+        BSONizer.setMaxElements(5);
+        try {
+            BSONizer.convertBSONtoJS(testScope, testDocument);
+            fail("limit ignored");
+        } catch (WrappedException e) {
+            assertTrue(e.getWrappedException() instanceof MongoScopeException);
+        } finally {
+            BSONizer.setMaxElements(BSONizer.DEFAULT_MAX_ELEMENTS);
+        }
+    }
+
+    private String tojson(Object jsObject) {
+        return Context.toString(MongoRuntime.call(new CallMethodAction(
+                testScope, testScope, "tojson", new Object[] { jsObject })));
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Benchmark of {@link BSONizer#convertBSONtoJS(MongoScope, Object)}, which
+ * enters a Context through {@link MongoRuntime#call(MongoAction)} for every
+ * document, against
+ * {@link BSONizer#convertBSONtoJS(Context, MongoScope, Object)} called for all
+ * documents within a single action, prints the cost per document for both.
+ * 
+ * Only runs when the hornofmongo.benchmarks system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=ConversionContextBenchmarkTest -Dhornofmongo.benchmarks=true
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class ConversionContextBenchmarkTest {
+
+    private static final int DOCUMENTS = 100000;
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmarkContextPerDocument() {
+        assumeTrue(Boolean.getBoolean("hornofmongo.benchmarks"));
+        final MongoScope mongoScope = MongoRuntime.createMongoScope();
+        final BasicDBObject document = new BasicDBObject("_id",
+                new ObjectId()).append("name", "acme").append("count", 3)
+                .append("price", 1.5).append("active", true);
+
+        long perCall = 0;
+        long singleContext = 0;
+        // the last round is reported, the others warm up
+        for (int round = 0; round < ROUNDS; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++)
+                BSONizer.convertBSONtoJS(mongoScope, document);
+            perCall = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            MongoRuntime.call(new MongoAction(mongoScope) {
+                @Override
+                protected Object doRun(Context cx) {
+                    for (int i = 0; i < DOCUMENTS; i++)
+                        BSONizer.convertBSONtoJS(cx, mongoScope, document);
+                    return null;
+                }
+            });
+            singleContext = System.nanoTime() - begin;
+        }
+        System.out.println("context per document: " + (perCall / DOCUMENTS)
+                + " ns/document, single context: "
+                + (singleContext / DOCUMENTS) + " ns/document");
+    }
+
+}
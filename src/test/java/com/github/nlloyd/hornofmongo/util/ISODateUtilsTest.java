@@ -0,0 +1,118 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.junit.Test;
+
+/**
+ * @author nlloyd
+ * 
+ */
+public class ISODateUtilsTest {
+
+    @Test
+    public void testParseMillis() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat(
+                ISODateUtils.ISO_MILLIS_PATTERN);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // 1900 to 2100
+            long millis = (long) ((random.nextDouble() - 0.5) * 200 * 365.25
+                    * 24 * 3600 * 1000);
+            assertEquals(millis,
+                    ISODateUtils.parseMillis(format.format(new Date(millis))));
+        }
+
+        assertEquals(1381285073000L,
+                ISODateUtils.parseMillis("2013-10-09T02:17:53Z"));
+        assertEquals(1381285073000L,
+                ISODateUtils.parseMillis("2013-10-09t02:17:53z"));
+        assertEquals(1381285073000L,
+                ISODateUtils.parseMillis("2013-10-09 04:17:53+02:00"));
+        assertEquals(1381285073000L,
+                ISODateUtils.parseMillis("2013-10-08T21:47:53-0430"));
+        assertEquals(1381285073000L,
+                ISODateUtils.parseMillis("2013-10-09T03:17:53+01"));
+        assertEquals(1381285020000L,
+                ISODateUtils.parseMillis("2013-10-09T02:17Z"));
+        assertEquals(1381285073100L,
+                ISODateUtils.parseMillis("2013-10-09T02:17:53.1Z"));
+        assertEquals(1381285073123L,
+                ISODateUtils.parseMillis("2013-10-09T02:17:53,123456Z"));
+        assertEquals(951782400000L,
+                ISODateUtils.parseMillis("2000-02-29T00:00:00Z"));
+        assertEquals(-62167219200000L,
+                ISODateUtils.parseMillis("0000-01-01T00:00:00Z"));
+
+        for (String invalid : new String[] { "", "yesterday",
+                "2013-10-09T02:17:53", "2013-10-09", "2013-10-09T02:17:53.Z",
+                "2013-13-09T02:17:53Z", "2013-02-29T02:17:53Z",
+                "2013-10-09T24:00:00Z", "2013-10-09T02:17:53+2:00",
+                "2013-10-09T02:17:53Zjunk", "+2013-10-09T02:17:53Z" })
+            assertEquals(invalid, ISODateUtils.INVALID,
+                    ISODateUtils.parseMillis(invalid));
+    }
+
+    @Test
+    public void testParseEpochMillis() {
+        assertEquals(1381285073000L,
+                ISODateUtils.parseEpochMillis("1381285073000"));
+        assertEquals(-1L, ISODateUtils.parseEpochMillis("-1"));
+        assertEquals(ISODateUtils.INVALID, ISODateUtils.parseEpochMillis(""));
+        assertEquals(ISODateUtils.INVALID, ISODateUtils.parseEpochMillis("-"));
+        assertEquals(ISODateUtils.INVALID,
+                ISODateUtils.parseEpochMillis("12a"));
+        assertEquals(ISODateUtils.INVALID,
+                ISODateUtils.parseEpochMillis("1234567890123456789"));
+    }
+
+    @Test
+    public void testFormatUTC() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // 1000 to 2940
+            Date date = new Date(
+                    (long) ((random.nextDouble() - 0.5) * 1940 * 365.25 * 24
+                            * 3600 * 1000));
+            for (String pattern : new String[] { ISODateUtils.ISO_PATTERN,
+                    ISODateUtils.ISO_MILLIS_PATTERN, "yyyy-MM-dd" })
+                assertEquals(DateFormatUtils.formatUTC(date, pattern),
+                        ISODateUtils.formatUTC(date, pattern));
+        }
+        assertEquals("1970-01-01T00:00:00.000Z",
+                ISODateUtils.formatUTC(new Date(0),
+                        ISODateUtils.ISO_MILLIS_PATTERN));
+        assertEquals("1969-12-31T23:59:59.999Z",
+                ISODateUtils.formatUTC(new Date(-1),
+                        ISODateUtils.ISO_MILLIS_PATTERN));
+    }
+
+}
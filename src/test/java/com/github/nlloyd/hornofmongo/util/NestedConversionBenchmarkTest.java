@@ -0,0 +1,202 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+import com.github.nlloyd.hornofmongo.MongoRuntime;
+import com.github.nlloyd.hornofmongo.MongoScope;
+import com.github.nlloyd.hornofmongo.action.MongoAction;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Benchmark of the stack based conversion of nested documents in
+ * {@link BSONizer} against the recursive conversion it replaced, for a deep
+ * and a wide document, prints the cost per document in both directions.
+ * 
+ * Only runs when the hornofmongo.benchmarks system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=NestedConversionBenchmarkTest -Dhornofmongo.benchmarks=true
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class NestedConversionBenchmarkTest {
+
+    private static final int DEPTH = 200;
+
+    private static final int FIELDS = 50;
+
+    private static final int DOCUMENTS = 20000;
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmarkNestedDocuments() {
+        assumeTrue(Boolean.getBoolean("hornofmongo.benchmarks"));
+        final MongoScope mongoScope = MongoRuntime.createMongoScope();
+        BasicDBObject deep = new BasicDBObject("leaf", 1.0);
+        for (int i = 0; i < DEPTH; i++)
+            deep = new BasicDBObject("level", deep).append("n", (double) i);
+        final BasicDBObject wide = new BasicDBObject("_id", new ObjectId());
+        for (int i = 0; i < FIELDS; i++) {
+            if (i % 2 == 0)
+                wide.append("f" + i, "value" + i);
+            else
+                wide.append("f" + i, new BasicDBObject("x", i * 1.5).append(
+                        "y", Arrays.asList("a", "b")));
+        }
+        final BasicDBObject deepDocument = deep;
+
+        MongoRuntime.call(new MongoAction(mongoScope) {
+            @Override
+            protected Object doRun(Context cx) {
+                benchmark(cx, mongoScope, DEPTH + " levels", deepDocument);
+                benchmark(cx, mongoScope, FIELDS + " fields", wide);
+                return null;
+            }
+        });
+    }
+
+    private void benchmark(Context cx, MongoScope mongoScope, String name,
+            BSONObject document) {
+        Object jsObject = BSONizer.convertBSONtoJS(cx, mongoScope, document);
+        long[] nanos = new long[4];
+        // the last round is reported, the others warm up
+        for (int round = 0; round < ROUNDS; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++)
+                Recursive.convertBSONtoJS(cx, mongoScope, document);
+            nanos[0] = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++)
+                BSONizer.convertBSONtoJS(cx, mongoScope, document);
+            nanos[1] = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++)
+                Recursive.convertJStoBSON(jsObject, true, null);
+            nanos[2] = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++)
+                BSONizer.convertJStoBSON(jsObject, true, null);
+            nanos[3] = System.nanoTime() - begin;
+        }
+        System.out.println(name + " BSON->JS recursive: "
+                + (nanos[0] / DOCUMENTS) + " ns/document, stack: "
+                + (nanos[1] / DOCUMENTS) + " ns/document, JS->BSON recursive: "
+                + (nanos[2] / DOCUMENTS) + " ns/document, stack: "
+                + (nanos[3] / DOCUMENTS) + " ns/document");
+    }
+
+    /**
+     * The recursive conversion of documents and arrays {@link BSONizer} used
+     * before {@link BSONizer#setMaxDepth(int)}, other values are converted by
+     * {@link BSONizer}.
+     */
+    private static class Recursive {
+
+        static Object convertJStoBSON(Object jsObject, boolean isJsObj,
+                String dateFormat) {
+            if (jsObject instanceof NativeArray) {
+                NativeArray jsArray = (NativeArray) jsObject;
+                List<Object> bsonArray = new ArrayList<Object>(Long.valueOf(
+                        jsArray.getLength()).intValue());
+                for (Object jsEntry : jsArray) {
+                    bsonArray.add(convertJStoBSON(jsEntry, isJsObj, dateFormat));
+                }
+                return bsonArray;
+            }
+            if ((jsObject == null)
+                    || (jsObject.getClass() != NativeObject.class))
+                return BSONizer.convertJStoBSON(jsObject, isJsObj, dateFormat);
+
+            BasicDBObject bson = new BasicDBObject();
+            Object bsonObject = bson;
+
+            NativeObject rawJsObject = (NativeObject) jsObject;
+            for (Object key : rawJsObject.keySet()) {
+                Object value = BSONizer.extractJSProperty(rawJsObject, key);
+
+                if (key.equals("$date")) {
+                    Date date = BSONizer.parseSpecialDate(value);
+                    if (date != null)
+                        bsonObject = date;
+                    else
+                        bson.put(key.toString(), convertJStoBSON(value,
+                                isJsObj, dateFormat));
+                } else {
+                    bson.put(key.toString(),
+                            convertJStoBSON(value, isJsObj, dateFormat));
+                }
+            }
+            return bsonObject;
+        }
+
+        static Object convertBSONtoJS(Context context, MongoScope mongoScope,
+                Object bsonObject) {
+            if (bsonObject instanceof List) {
+                List<?> bsonList = (List<?>) bsonObject;
+                Object[] elements = new Object[bsonList.size()];
+                int index = 0;
+                for (Object bsonEntry : bsonList) {
+                    elements[index++] = convertBSONtoJS(context, mongoScope,
+                            bsonEntry);
+                }
+                return context.newArray(mongoScope, elements);
+            }
+            if (!(bsonObject instanceof BSONObject))
+                return BSONizer.convertBSONtoJS(context, mongoScope,
+                        bsonObject);
+
+            Scriptable jsObj = context.newObject(mongoScope);
+            BSONObject bsonObj = (BSONObject) bsonObject;
+
+            for (String key : bsonObj.keySet()) {
+                Object value = convertBSONtoJS(context, mongoScope,
+                        bsonObj.get(key));
+                ScriptRuntime.setObjectElem(jsObj, key, value, context);
+            }
+            return jsObj;
+        }
+
+    }
+
+}
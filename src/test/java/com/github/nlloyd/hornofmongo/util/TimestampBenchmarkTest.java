@@ -0,0 +1,95 @@
+/**
+ *  Copyright (c) 2013 Nick Lloyd
+ *  
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *  
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *  
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.github.nlloyd.hornofmongo.util;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.github.nlloyd.hornofmongo.adaptor.Timestamp;
+
+/**
+ * Contention benchmark for the server-assigned {@link Timestamp} values
+ * generated by {@link BSONizer#convertJStoBSON(Object, boolean)}, prints the
+ * cost per conversion for 1, 8 and 32 threads.
+ * 
+ * Only runs when the hornofmongo.benchmarks system property is true:
+ * 
+ * <pre>
+ * mvn test -Dtest=TimestampBenchmarkTest -Dhornofmongo.benchmarks=true
+ * </pre>
+ * 
+ * @author nlloyd
+ * 
+ */
+public class TimestampBenchmarkTest {
+
+    private static final int CONVERSIONS = 2000000;
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmarkConcurrentTimestamps() throws Exception {
+        assumeTrue(Boolean.getBoolean("hornofmongo.benchmarks"));
+        for (int threadCount : new int[] { 1, 8, 32 }) {
+            long nanos = 0;
+            // the last round is reported, the others warm up
+            for (int round = 0; round < ROUNDS; round++)
+                nanos = run(threadCount, CONVERSIONS / threadCount);
+            System.out.println(threadCount + " threads: "
+                    + (nanos / CONVERSIONS) + " ns/conversion");
+        }
+    }
+
+    private long run(int threadCount, final int perThread)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Timestamp timestamp = new Timestamp();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                        BSONizer.convertJStoBSON(timestamp, true);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        return System.nanoTime() - begin;
+    }
+
+}